@@ -0,0 +1,115 @@
+package com.rootscity.places;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.rootscity.places.standardize.ExactMatchIndex;
+import com.rootscity.places.standardize.Standardizer;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Build an ExactMatchIndex file for EXACT_MATCH_FILE.
+ * Mapping files are json objects from raw text to the full name of its place, like PlacesMap.json;
+ * the full name is resolved to a place id by standardizing it (or the raw text) and keeping the result with that full name.
+ * Run files hold the results of earlier standardize runs, one "raw text<TAB>place id" per line, as written by writeRunLine
+ * (e.g. testPlaces -runOutput).
+ */
+public class BuildExactMatches {
+	private static final int CANDIDATES = 10;
+
+	@Option(name = "-map", usage = "json mapping of raw text to full place name; may be repeated")
+	private List<File> mapFiles = new ArrayList<>();
+
+	@Option(name = "-run", usage = "tab-separated raw text and place id; may be repeated")
+	private List<File> runFiles = new ArrayList<>();
+
+	@Option(name = "-out", required = true, usage = "exact match file to write")
+	private File outFile;
+
+	public static void main(String[] args) throws IOException {
+		BuildExactMatches builder = new BuildExactMatches();
+		CmdLineParser parser = new CmdLineParser(builder);
+		try {
+			parser.parseArgument(args);
+		}
+		catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		builder.run();
+	}
+
+	public void run() throws IOException {
+		Standardizer standardizer = Standardizer.getInstance();
+		// resolve names with the full algorithm, not with a previous exact match file
+		standardizer.setExactMatchIndex(null);
+		Map<String, Integer> placeIds = new LinkedHashMap<>();
+
+		for (File mapFile : mapFiles) {
+			Map<String, String> mapping;
+			try (Reader r = new InputStreamReader(new FileInputStream(mapFile), StandardCharsets.UTF_8)) {
+				mapping = new Gson().fromJson(new JsonReader(r), new TypeToken<TreeMap<String, String>>() {}.getType());
+			}
+			int unresolved = 0;
+			for (Map.Entry<String, String> entry : mapping.entrySet()) {
+				int id = resolve(standardizer, entry.getValue(), entry.getValue());
+				if (id == 0) {
+					id = resolve(standardizer, entry.getKey(), entry.getValue());
+				}
+				if (id > 0) {
+					placeIds.put(entry.getKey(), id);
+				} else {
+					unresolved++;
+				}
+			}
+			System.out.println(mapFile + ": " + (mapping.size() - unresolved) + " resolved, " + unresolved + " unresolved");
+		}
+
+		for (File runFile : runFiles) {
+			int count = 0;
+			try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(runFile), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = r.readLine()) != null) {
+					int pos = line.lastIndexOf('\t');
+					if (pos > 0) {
+						placeIds.put(line.substring(0, pos), Integer.parseInt(line.substring(pos + 1).trim()));
+						count++;
+					}
+				}
+			}
+			System.out.println(runFile + ": " + count + " entries");
+		}
+
+		ExactMatchIndex.write(placeIds, outFile);
+		System.out.println("Wrote " + new ExactMatchIndex(outFile).size() + " exact matches to " + outFile);
+	}
+
+	/**
+	 * Write one line of a run file: raw text and the id of the place it standardized to.
+	 * Texts containing a line break can't be read back, so they are left out.
+	 */
+	public static void writeRunLine(Writer w, String text, int placeId) throws IOException {
+		if (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+			w.write(text + "\t" + placeId + "\n");
+		}
+	}
+
+	/**
+	 * @return id of the place text standardizes to whose full name is fullName, or 0
+	 */
+	private static int resolve(Standardizer standardizer, String text, String fullName) {
+		for (Standardizer.PlaceScore ps : standardizer.standardize(text, CANDIDATES)) {
+			if (ps.getPlace().getFullName().equalsIgnoreCase(fullName)) {
+				return ps.getPlace().getId();
+			}
+		}
+		return 0;
+	}
+}
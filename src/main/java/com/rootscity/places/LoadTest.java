@@ -0,0 +1,226 @@
+package com.rootscity.places;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.rootscity.places.standardize.JdbcStore;
+import com.rootscity.places.standardize.StandardizeContext;
+import com.rootscity.places.standardize.StandardizeOptions;
+import com.rootscity.places.standardize.Standardizer;
+import org.HdrHistogram.Histogram;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for the shared Standardizer.
+ * Replays the keys of PlacesMap.json (or the lines of -input) from several threads at once, for each thread count in -threads.
+ * Closed loop (the default): every thread sends its next request as soon as the previous one returns.
+ * Open loop (-rate): requests are scheduled at a fixed total rate, and latency is measured from the scheduled start,
+ * so time spent queued behind a slow request counts (no coordinated omission).
+ * The backend is chosen the usual way (DATABASE_URL, PLACE_STORE, ...); run once per backend to compare them.
+ */
+public class LoadTest {
+	private static final long HIGHEST_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	@Option(name = "-input", usage = "file with one place per line; default is the keys of PlacesMap.json")
+	private File inputFile = null;
+
+	@Option(name = "-threads", usage = "comma-separated thread counts to run one after the other")
+	private String threadCounts = "1,2,4,8,16";
+
+	@Option(name = "-rate", usage = "open loop: total requests per second over all threads; 0 for closed loop")
+	private double rate = 0;
+
+	@Option(name = "-duration", usage = "seconds measured per thread count")
+	private int durationSeconds = 30;
+
+	@Option(name = "-warmup", usage = "seconds run before each measurement and discarded")
+	private int warmupSeconds = 10;
+
+	@Option(name = "-expectedIntervalUs", usage = "closed loop: expected interval between requests used to correct for coordinated omission; 0 uses the measured median")
+	private long expectedIntervalMicros = 0;
+
+	@Option(name = "-numResults", usage = "results requested per place")
+	private int numResults = 1;
+
+	@Option(name = "-histogram", usage = "print the full percentile distribution of every run")
+	private boolean printHistogram = false;
+
+	private List<String> inputs;
+
+	public static void main(String[] args) throws Exception {
+		LoadTest loadTest = new LoadTest();
+		CmdLineParser parser = new CmdLineParser(loadTest);
+		try {
+			parser.parseArgument(args);
+		}
+		catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		loadTest.run();
+	}
+
+	/**
+	 * Latencies and counts of one thread
+	 */
+	private static class Worker extends Thread {
+		final Histogram serviceTimes = new Histogram(HIGHEST_LATENCY_NANOS, 3);
+		final Histogram responseTimes = new Histogram(HIGHEST_LATENCY_NANOS, 3);
+		long requests = 0;
+		long errors = 0;
+		private final LoadTest test;
+		private final StandardizeOptions options;
+		private final AtomicLong next;
+		private final long intervalNanos;
+		private final long startNanos;
+		private final long endNanos;
+		private final long measureFromNanos;
+
+		Worker(LoadTest test, StandardizeOptions options, AtomicLong next, int index, long intervalNanos,
+		       long startNanos, long measureFromNanos, long endNanos) {
+			super("load-" + index);
+			this.test = test;
+			this.options = options;
+			this.next = next;
+			this.intervalNanos = intervalNanos;
+			this.startNanos = startNanos;
+			this.measureFromNanos = measureFromNanos;
+			this.endNanos = endNanos;
+		}
+
+		@Override
+		public void run() {
+			StandardizeContext ctx = new StandardizeContext(null, options);
+			Standardizer standardizer = Standardizer.getInstance();
+			long scheduled = startNanos;
+			while (true) {
+				long now = System.nanoTime();
+				if (intervalNanos > 0) {
+					while (now < scheduled) {
+						LockSupport.parkNanos(scheduled - now);
+						now = System.nanoTime();
+					}
+				} else {
+					scheduled = now;
+				}
+				if (scheduled >= endNanos) {
+					break;
+				}
+				String text = test.inputs.get((int) (next.getAndIncrement() % test.inputs.size()));
+				long start = System.nanoTime();
+				try {
+					standardizer.standardize(ctx, text);
+				}
+				catch (RuntimeException e) {
+					if (scheduled >= measureFromNanos) {
+						errors++;
+					}
+				}
+				long end = System.nanoTime();
+				if (scheduled >= measureFromNanos) {
+					serviceTimes.recordValue(Math.min(end - start, HIGHEST_LATENCY_NANOS));
+					responseTimes.recordValue(Math.min(end - scheduled, HIGHEST_LATENCY_NANOS));
+					requests++;
+				}
+				if (intervalNanos > 0) {
+					scheduled += intervalNanos;
+				}
+			}
+		}
+	}
+
+	private void loadInputs() throws IOException {
+		if (inputFile != null) {
+			inputs = new ArrayList<>();
+			try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = r.readLine()) != null) {
+					if (line.trim().length() > 0) {
+						inputs.add(line.trim());
+					}
+				}
+			}
+		} else {
+			InputStreamReader bis = new InputStreamReader(ClassLoader.getSystemResourceAsStream("PlacesMap.json"), StandardCharsets.UTF_8);
+			Map<String, String> placeMap = new Gson().fromJson(new JsonReader(bis), new TypeToken<TreeMap<String, String>>() {}.getType());
+			inputs = new ArrayList<>(placeMap.keySet());
+		}
+		// replay in a fixed but non-alphabetical order so neighbouring requests don't share cache entries
+		Collections.shuffle(inputs, new Random(42));
+	}
+
+	public void run() throws Exception {
+		loadInputs();
+		long initStart = System.nanoTime();
+		Standardizer standardizer = Standardizer.getInstance();
+		System.out.println(String.format("backend=%s inputs=%d init=%.3fs mode=%s",
+				standardizer.getPlaceStore().getName(), inputs.size(), (System.nanoTime() - initStart) / 1e9,
+				rate > 0 ? "open loop at " + rate + "/s" : "closed loop"));
+		StandardizeOptions options = standardizer.compileOptions(null, Standardizer.Mode.BEST, numResults);
+
+		System.out.println(String.format("%7s %12s %8s %10s %10s %10s %10s %10s %10s",
+				"threads", "throughput/s", "errors", "p50us", "p90us", "p99us", "p99.9us", "maxus", "p99svcus"));
+		for (String count : threadCounts.split(",")) {
+			runStep(Integer.parseInt(count.trim()), options);
+		}
+		if (standardizer.getPlaceStore() instanceof JdbcStore) {
+			System.out.println(((JdbcStore) standardizer.getPlaceStore()).getCacheReport());
+		}
+	}
+
+	private void runStep(int threads, StandardizeOptions options) throws InterruptedException {
+		long intervalNanos = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+		long start = System.nanoTime();
+		long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+		AtomicLong next = new AtomicLong();
+		List<Worker> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			// stagger the open-loop schedules so the threads don't all fire at once
+			workers.add(new Worker(this, options, next, i, intervalNanos, start + i * intervalNanos / threads, measureFrom, end));
+		}
+		for (Worker worker : workers) {
+			worker.start();
+		}
+		Histogram serviceTimes = new Histogram(HIGHEST_LATENCY_NANOS, 3);
+		Histogram responseTimes = new Histogram(HIGHEST_LATENCY_NANOS, 3);
+		long requests = 0;
+		long errors = 0;
+		for (Worker worker : workers) {
+			worker.join();
+			serviceTimes.add(worker.serviceTimes);
+			responseTimes.add(worker.responseTimes);
+			requests += worker.requests;
+			errors += worker.errors;
+		}
+		long elapsed = Math.max(1, System.nanoTime() - measureFrom);
+
+		Histogram latencies;
+		if (rate > 0) {
+			latencies = responseTimes;
+		} else {
+			// a closed loop stops sending while a request is slow; fill in the requests it would have sent
+			long expectedInterval = expectedIntervalMicros > 0 ? TimeUnit.MICROSECONDS.toNanos(expectedIntervalMicros)
+					: serviceTimes.getValueAtPercentile(50);
+			latencies = serviceTimes.copyCorrectedForCoordinatedOmission(expectedInterval);
+		}
+		System.out.println(String.format("%7d %12.1f %8d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f",
+				threads, requests / (elapsed / 1e9), errors,
+				latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(90) / 1000.0,
+				latencies.getValueAtPercentile(99) / 1000.0, latencies.getValueAtPercentile(99.9) / 1000.0,
+				latencies.getMaxValue() / 1000.0, serviceTimes.getValueAtPercentile(99) / 1000.0));
+		if (printHistogram) {
+			latencies.outputPercentileDistribution(System.out, 1000.0);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.rootscity.places;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.mchange.v2.c3p0.DataSources;
+import com.rootscity.places.standardize.JdbcStore;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.sql.SQLException;
+
+/**
+ * Fill the packed ids column of place_words, for wordIdsPackedColumn in standardizer.properties.
+ * Add the column (e.g. as a VARBINARY or BLOB) first, and run this again whenever place_words is reloaded;
+ * with -onlyMissing it packs the rows added, or whose packed ids were cleared, since the last run.
+ */
+public class PackWordIds {
+	@Option(name = "-url", usage = "jdbc url of the database; defaults to DATABASE_URL")
+	private String url = System.getenv("DATABASE_URL");
+
+	@Option(name = "-column", required = true, usage = "place_words column to write the packed ids to")
+	private String column;
+
+	@Option(name = "-onlyMissing", usage = "pack only the rows whose packed column is NULL, e.g. words added or changed since the last run")
+	private boolean onlyMissing = false;
+
+	public static void main(String[] args) throws SQLException {
+		PackWordIds packer = new PackWordIds();
+		CmdLineParser parser = new CmdLineParser(packer);
+		try {
+			parser.parseArgument(args);
+		}
+		catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		if (packer.url == null) {
+			System.err.println("Set -url or DATABASE_URL");
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		packer.run();
+	}
+
+	public void run() throws SQLException {
+		ComboPooledDataSource dataSource = new ComboPooledDataSource();
+		dataSource.setJdbcUrl(url);
+		try {
+			int rows = JdbcStore.packWordIds(dataSource, column, onlyMissing);
+			System.out.println("Packed the ids of " + rows + " words into place_words." + column);
+		}
+		finally {
+			DataSources.destroy(dataSource);
+		}
+	}
+}
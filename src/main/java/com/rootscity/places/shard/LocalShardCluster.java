@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.shard;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Runs every shard of a configuration as its own JVM on this machine, waits until they are ready,
+ * and optionally replays PlacesMap.json through a ShardRouter to report accuracy and latency.
+ * The shard directories must have been written by ShardBuilder into -dir.
+ */
+public class LocalShardCluster {
+	private static final long READY_TIMEOUT_MILLIS = 30 * 60 * 1000L;
+
+	@Option(name = "-config", required = true, usage = "shard configuration properties")
+	private File configFile;
+
+	@Option(name = "-dir", required = true, usage = "directory written by ShardBuilder")
+	private File dir;
+
+	@Option(name = "-xmx", usage = "max heap of each shard JVM")
+	private String xmx = "2g";
+
+	@Option(name = "-test", usage = "standardize PlacesMap.json through the router once the shards are ready")
+	private boolean test = false;
+
+	@Option(name = "-defaultCountry", usage = "default country for the test, as a single standardizer would be given")
+	private String defaultCountry = null;
+
+	@Option(name = "-keepRunning", usage = "keep serving after the test until killed")
+	private boolean keepRunning = false;
+
+	private final List<Process> processes = new ArrayList<>();
+
+	public static void main(String[] args) throws Exception {
+		LocalShardCluster cluster = new LocalShardCluster();
+		CmdLineParser parser = new CmdLineParser(cluster);
+		try {
+			parser.parseArgument(args);
+		}
+		catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		cluster.run();
+	}
+
+	public void run() throws Exception {
+		ShardConfig config = ShardConfig.load(configFile);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+		for (ShardConfig.Shard shard : config.getShards()) {
+			start(shard);
+		}
+		for (ShardConfig.Shard shard : config.getShards()) {
+			waitUntilReady(shard);
+		}
+		System.out.println("All shards ready");
+
+		if (test) {
+			try (ShardRouter router = new ShardRouter(config, new File(dir, ShardBuilder.ROUTER_FILE))) {
+				replay(router);
+			}
+		}
+		if (keepRunning) {
+			for (Process process : processes) {
+				process.waitFor();
+			}
+		}
+		stop();
+	}
+
+	private void start(ShardConfig.Shard shard) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder pb = new ProcessBuilder(java, "-Xmx" + xmx, "-cp", System.getProperty("java.class.path"),
+				ShardServer.class.getName(), "-port", Integer.toString(shard.getPort()));
+		pb.environment().put("PLACES_DIR", new File(dir, shard.getName()).getAbsolutePath());
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(new File(dir, shard.getName() + ".log"));
+		processes.add(pb.start());
+		System.out.println("Started shard " + shard.getName() + " on port " + shard.getPort());
+	}
+
+	private void waitUntilReady(ShardConfig.Shard shard) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				HttpURLConnection conn = (HttpURLConnection) new URL(shard.getUrl() + "/ready").openConnection();
+				int status = conn.getResponseCode();
+				conn.disconnect();
+				if (status == 200) {
+					return;
+				}
+			}
+			catch (IOException e) {
+				// not listening yet
+			}
+			Thread.sleep(1000);
+		}
+		throw new RuntimeException("Shard " + shard.getName() + " not ready; see " + new File(dir, shard.getName() + ".log"));
+	}
+
+	private void replay(ShardRouter router) {
+		InputStreamReader bis = new InputStreamReader(ClassLoader.getSystemResourceAsStream("PlacesMap.json"));
+		TreeMap<String, String> placeMap = new Gson().fromJson(new JsonReader(bis), new TypeToken<TreeMap<String, String>>() {}.getType());
+		ShardRouter.Options options = router.compileOptions(defaultCountry, "BEST", 1);
+		int eq = 0;
+		long[] latencies = new long[placeMap.size()];
+		int i = 0;
+		long start = System.nanoTime();
+		for (Map.Entry<String, String> entry : placeMap.entrySet()) {
+			long t = System.nanoTime();
+			List<ShardServer.Match> matches = router.standardize(options, entry.getKey());
+			latencies[i++] = System.nanoTime() - t;
+			String res = matches.isEmpty() ? "" : matches.get(0).fullName;
+			if (res.equalsIgnoreCase(entry.getValue())) {
+				eq++;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		Arrays.sort(latencies);
+		System.out.println(String.format("identical=%d diff=%d elapsed=%.3fs throughput=%.1f/s p50=%.1fus p99=%.1fus",
+				eq, placeMap.size() - eq, elapsed / 1e9, placeMap.size() / (elapsed / 1e9),
+				latencies[latencies.length / 2] / 1000.0, latencies[Math.max(0, (int) Math.ceil(latencies.length * 0.99) - 1)] / 1000.0));
+	}
+
+	private synchronized void stop() {
+		for (Process process : processes) {
+			process.destroy();
+		}
+		processes.clear();
+	}
+}
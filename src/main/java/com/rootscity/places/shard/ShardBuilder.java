@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.shard;
+
+import com.rootscity.places.standardize.placeNormalizer;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Split places.tsv and place_words.tsv into one directory per shard (see ShardConfig).
+ * A shard holds the places of its countries, every top-level place, and every ancestor of those places
+ * (also-located-in parents may be in other countries), so ancestor walks never leave the shard.
+ * Also writes router.tsv: normalized names of level 1 and 2 places with their country, used by ShardRouter.
+ * Each shard directory can then be served by a standardizer started with PLACES_DIR pointing at it.
+ */
+public class ShardBuilder {
+	public static final String ROUTER_FILE = "router.tsv";
+
+	@Option(name = "-config", required = true, usage = "shard configuration properties")
+	private File configFile;
+
+	@Option(name = "-in", required = true, usage = "directory containing places.tsv and place_words.tsv")
+	private File inDir;
+
+	@Option(name = "-out", required = true, usage = "directory to write one sub-directory per shard into")
+	private File outDir;
+
+	private final Map<Integer, int[]> parents = new HashMap<>();
+	private final Map<Integer, Integer> countries = new HashMap<>();
+	private final List<Integer> topLevelIds = new ArrayList<>();
+
+	public static void main(String[] args) throws IOException {
+		ShardBuilder builder = new ShardBuilder();
+		CmdLineParser parser = new CmdLineParser(builder);
+		try {
+			parser.parseArgument(args);
+		}
+		catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		builder.run();
+	}
+
+	private static BufferedReader reader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+	}
+
+	private static Writer writer(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+	}
+
+	public void run() throws IOException {
+		ShardConfig config = ShardConfig.load(configFile);
+		List<ShardConfig.Shard> shards = config.getShards();
+
+		if (!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("Can't create " + outDir);
+		}
+
+		// pass 1: hierarchy, countries and router names
+		try (BufferedReader r = reader(new File(inDir, "places.tsv"));
+		     Writer router = writer(new File(outDir, ROUTER_FILE))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				String[] fields = line.split("\t");
+				int id = Integer.parseInt(fields[0]);
+				int locatedInId = Integer.parseInt(fields[4]);
+				String[] alsoLocatedIn = fields[5].length() > 0 ? fields[5].split("~") : new String[0];
+				int[] placeParents = new int[alsoLocatedIn.length + (locatedInId > 0 ? 1 : 0)];
+				for (int i = 0; i < alsoLocatedIn.length; i++) {
+					placeParents[i] = Integer.parseInt(alsoLocatedIn[i]);
+				}
+				if (locatedInId > 0) {
+					placeParents[alsoLocatedIn.length] = locatedInId;
+				}
+				parents.put(id, placeParents);
+				int level = Integer.parseInt(fields[6]);
+				int countryId = Integer.parseInt(fields[7]);
+				countries.put(id, countryId);
+				if (level == 1) {
+					topLevelIds.add(id);
+				}
+				if (level <= 2) {
+					Set<String> names = new HashSet<>();
+					names.add(placeNormalizer.getInstance().normalize(fields[1]));
+					for (String altName : fields[2].length() > 0 ? fields[2].split("~") : new String[0]) {
+						int pos = altName.indexOf(':');
+						names.add(placeNormalizer.getInstance().normalize(pos > 0 ? altName.substring(0, pos) : altName));
+					}
+					for (String name : names) {
+						if (name.length() > 0) {
+							router.write(name + "\t" + (level == 1 ? id : countryId) + "\n");
+						}
+					}
+				}
+			}
+		}
+
+		// which places go into which shard
+		Map<String, BitSet> members = new HashMap<>();
+		for (ShardConfig.Shard shard : shards) {
+			members.put(shard.getName(), new BitSet());
+		}
+		for (Map.Entry<Integer, Integer> entry : countries.entrySet()) {
+			// a country's own place belongs to it, even if its country id isn't set
+			int countryId = entry.getValue() > 0 ? entry.getValue() : entry.getKey();
+			addWithAncestors(members.get(config.getShard(countryId).getName()), entry.getKey());
+		}
+		for (BitSet shardMembers : members.values()) {
+			for (int id : topLevelIds) {
+				addWithAncestors(shardMembers, id);
+			}
+		}
+
+		// pass 2: places
+		Map<String, Writer> placeWriters = new HashMap<>();
+		Map<String, Writer> wordWriters = new HashMap<>();
+		try {
+			for (ShardConfig.Shard shard : shards) {
+				File shardDir = new File(outDir, shard.getName());
+				shardDir.mkdirs();
+				placeWriters.put(shard.getName(), writer(new File(shardDir, "places.tsv")));
+				wordWriters.put(shard.getName(), writer(new File(shardDir, "place_words.tsv")));
+			}
+			try (BufferedReader r = reader(new File(inDir, "places.tsv"))) {
+				String line;
+				while ((line = r.readLine()) != null) {
+					int id = Integer.parseInt(line.substring(0, line.indexOf('\t')));
+					for (ShardConfig.Shard shard : shards) {
+						if (members.get(shard.getName()).get(id)) {
+							placeWriters.get(shard.getName()).write(line + "\n");
+						}
+					}
+				}
+			}
+
+			// pass 3: posting lists restricted to each shard's places
+			try (BufferedReader r = reader(new File(inDir, "place_words.tsv"))) {
+				String line;
+				StringBuilder buf = new StringBuilder();
+				while ((line = r.readLine()) != null) {
+					String[] fields = line.split("\t");
+					String[] ids = fields[1].split(",");
+					for (ShardConfig.Shard shard : shards) {
+						BitSet shardMembers = members.get(shard.getName());
+						buf.setLength(0);
+						for (String id : ids) {
+							if (shardMembers.get(Integer.parseInt(id))) {
+								buf.append(buf.length() > 0 ? "," : "").append(id);
+							}
+						}
+						if (buf.length() > 0) {
+							wordWriters.get(shard.getName()).write(fields[0] + "\t" + buf + "\n");
+						}
+					}
+				}
+			}
+		}
+		finally {
+			for (Writer w : placeWriters.values()) {
+				w.close();
+			}
+			for (Writer w : wordWriters.values()) {
+				w.close();
+			}
+		}
+		for (ShardConfig.Shard shard : shards) {
+			System.out.println(shard.getName() + ": " + members.get(shard.getName()).cardinality() + " places");
+		}
+	}
+
+	private void addWithAncestors(BitSet shardMembers, int id) {
+		Deque<Integer> stack = new ArrayDeque<>();
+		stack.push(id);
+		while (!stack.isEmpty()) {
+			int current = stack.pop();
+			if (!shardMembers.get(current)) {
+				shardMembers.set(current);
+				for (int parent : parents.getOrDefault(current, new int[0])) {
+					stack.push(parent);
+				}
+			}
+		}
+	}
+}
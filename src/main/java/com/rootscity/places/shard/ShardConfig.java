@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.shard;
+
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Which countries each shard of a country-partitioned index holds, and where it is served.
+ *
+ * shards=us,de,rest
+ * shard.us.countries=1500
+ * shard.us.url=http://localhost:2101
+ * shard.rest.countries=
+ * shard.rest.url=http://localhost:2103
+ *
+ * A shard with no countries is the default shard: it holds every country no other shard claims.
+ */
+public class ShardConfig {
+	public static class Shard {
+		private final String name;
+		private final Set<Integer> countries;
+		private final String url;
+
+		Shard(String name, Set<Integer> countries, String url) {
+			this.name = name;
+			this.countries = countries;
+			this.url = url;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Set<Integer> getCountries() {
+			return countries;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public int getPort() {
+			try {
+				return new URL(url).getPort();
+			}
+			catch (IOException e) {
+				throw new IllegalArgumentException("Bad shard url: " + url);
+			}
+		}
+
+		public boolean isDefault() {
+			return countries.isEmpty();
+		}
+	}
+
+	private final List<Shard> shards = new ArrayList<>();
+	private final Map<Integer, Shard> shardByCountry = new HashMap<>();
+	private Shard defaultShard = null;
+
+	public ShardConfig(Properties props) {
+		for (String name : props.getProperty("shards").split(",")) {
+			name = name.trim();
+			Set<Integer> countries = new HashSet<>();
+			for (String country : props.getProperty("shard." + name + ".countries", "").split(",")) {
+				if (country.trim().length() > 0) {
+					countries.add(Integer.parseInt(country.trim()));
+				}
+			}
+			Shard shard = new Shard(name, countries, props.getProperty("shard." + name + ".url"));
+			shards.add(shard);
+			if (shard.isDefault()) {
+				if (defaultShard != null) {
+					throw new IllegalArgumentException("More than one default shard: " + defaultShard.getName() + ", " + name);
+				}
+				defaultShard = shard;
+			}
+			for (int country : countries) {
+				shardByCountry.put(country, shard);
+			}
+		}
+		if (defaultShard == null) {
+			throw new IllegalArgumentException("No default shard (a shard without countries)");
+		}
+	}
+
+	public static ShardConfig load(File file) throws IOException {
+		Properties props = new Properties();
+		try (Reader r = new InputStreamReader(new FileInputStream(file), "UTF8")) {
+			props.load(r);
+		}
+		return new ShardConfig(props);
+	}
+
+	public List<Shard> getShards() {
+		return shards;
+	}
+
+	public Shard getShard(int countryId) {
+		Shard shard = shardByCountry.get(countryId);
+		return shard != null ? shard : defaultShard;
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.shard;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.rootscity.places.standardize.placeNormalizer;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Sends a standardize request to the shards that can answer it and merges their results.
+ * The country is taken from the right-most level of the text that names a top-level place or a state/province
+ * (router.tsv), and defaultCountry's shard is added to it, since a single standardizer only uses defaultCountry
+ * to filter ambiguous matches. Names found in several countries go to each of their shards.
+ * Text that names no known country goes to defaultCountry's shard, and to every other shard when that one
+ * finds nothing below the top level; without a defaultCountry it goes to every shard.
+ * A shard that fails, is busy, or doesn't answer in time is logged and left out of the merge.
+ */
+public class ShardRouter implements Closeable {
+	private static Logger logger = Logger.getLogger("places.shard");
+	private static final Gson gson = new Gson();
+	private static final Type MATCH_LIST = new TypeToken<List<ShardServer.Match>>() {}.getType();
+	private static final int TIMEOUT_MILLIS = 10000;
+	// concurrent requests per shard; more wait for a thread
+	private static final int THREADS_PER_SHARD = 4;
+	// requests waiting per shard; more are refused, so a hung shard can't hold up the callers
+	private static final int QUEUE_PER_SHARD = 64;
+
+	private final ShardConfig config;
+	private final Map<String, int[]> countriesByName = new HashMap<>();
+	// one pool per shard, so a shard that hangs only ties up its own threads
+	private final Map<ShardConfig.Shard, ExecutorService> executors = new HashMap<>();
+	// callers repeat the same few option combinations; resolve each default country once
+	private final Cache<String, Options> optionsCache = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+	/**
+	 * Request options with the default country already resolved to its shards, from compileOptions
+	 */
+	public static final class Options {
+		private final Set<ShardConfig.Shard> countryShards;
+		private final String parameters;
+		private final int numResults;
+
+		private Options(Set<ShardConfig.Shard> countryShards, String parameters, int numResults) {
+			this.countryShards = countryShards;
+			this.parameters = parameters;
+			this.numResults = numResults;
+		}
+	}
+
+	public ShardRouter(ShardConfig config, File routerFile) throws IOException {
+		this.config = config;
+		Map<String, Set<Integer>> names = new HashMap<>();
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(routerFile), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				int pos = line.indexOf('\t');
+				names.computeIfAbsent(line.substring(0, pos), k -> new HashSet<>()).add(Integer.parseInt(line.substring(pos + 1)));
+			}
+		}
+		for (Map.Entry<String, Set<Integer>> entry : names.entrySet()) {
+			countriesByName.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+		}
+		for (ShardConfig.Shard shard : config.getShards()) {
+			executors.put(shard, new ThreadPoolExecutor(THREADS_PER_SHARD, THREADS_PER_SHARD, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(QUEUE_PER_SHARD)));
+		}
+	}
+
+	/**
+	 * @return the shards asked first for the place named by text; when the text names no known country and
+	 * defaultCountry's shards find nothing below the top level, the other shards are asked as well
+	 */
+	public Set<ShardConfig.Shard> route(String text, String defaultCountry) {
+		Set<ShardConfig.Shard> shards = getTextShards(text);
+		shards.addAll(getCountryShards(defaultCountry));
+		return shards.isEmpty() ? new LinkedHashSet<>(config.getShards()) : shards;
+	}
+
+	// the shards of the right-most level of text that names a known country; empty when none does
+	private Set<ShardConfig.Shard> getTextShards(String text) {
+		Set<ShardConfig.Shard> shards = new LinkedHashSet<>();
+		List<List<String>> levels = placeNormalizer.getInstance().tokenize(text);
+		// router names were normalized whole, which drops the spaces between words
+		for (int i = levels.size() - 1; i >= 0 && shards.isEmpty(); i--) {
+			addShards(shards, countriesByName.get(String.join("", levels.get(i))));
+		}
+		return shards;
+	}
+
+	private Set<ShardConfig.Shard> getCountryShards(String defaultCountry) {
+		Set<ShardConfig.Shard> shards = new LinkedHashSet<>();
+		if (defaultCountry != null) {
+			addShards(shards, countriesByName.get(placeNormalizer.getInstance().normalize(defaultCountry)));
+		}
+		return shards;
+	}
+
+	private void addShards(Set<ShardConfig.Shard> shards, int[] countries) {
+		if (countries != null) {
+			for (int country : countries) {
+				shards.add(config.getShard(country));
+			}
+		}
+	}
+
+	/**
+	 * Resolve defaultCountry to its shards once, so the options can be reused for any number of calls and threads
+	 */
+	public Options compileOptions(String defaultCountry, String mode, int numResults) {
+		StringBuilder parameters = new StringBuilder();
+		if (defaultCountry != null) {
+			parameters.append("&defaultCountry=").append(encode(defaultCountry));
+		}
+		parameters.append("&mode=").append(mode).append("&numResults=").append(numResults);
+		return new Options(getCountryShards(defaultCountry), parameters.toString(), numResults);
+	}
+
+	/**
+	 * Standardize text on the shards it routes to
+	 * @return the best numResults matches over all shards, highest score first
+	 */
+	public List<ShardServer.Match> standardize(String text, String defaultCountry, String mode, int numResults) {
+		Options options;
+		try {
+			options = optionsCache.get((defaultCountry == null ? "" : defaultCountry) + "|" + mode + "|" + numResults,
+					() -> compileOptions(defaultCountry, mode, numResults));
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException("Error resolving options: " + e.getCause().getMessage());
+		}
+		return standardize(options, text);
+	}
+
+	/**
+	 * Standardize text with options from compileOptions.
+	 * Shards that fail, are busy, or time out are left out; only when every shard asked fails is that an error.
+	 * @return the best numResults matches over the shards that answered, highest score first
+	 */
+	public List<ShardServer.Match> standardize(Options options, String text) {
+		String query = "/standardize?text=" + encode(text) + options.parameters;
+		Set<ShardConfig.Shard> shards = getTextShards(text);
+		// only defaultCountry is known: its shard answers unless all it finds are top-level places
+		boolean countryOnly = shards.isEmpty() && !options.countryShards.isEmpty();
+		shards.addAll(options.countryShards);
+		if (shards.isEmpty()) {
+			shards.addAll(config.getShards());
+		}
+		List<ShardServer.Match> matches = new ArrayList<>();
+		int asked = shards.size();
+		int failed = gather(shards, query, text, matches);
+		if (countryOnly && matches.stream().allMatch(m -> m.level <= 1)) {
+			Set<ShardConfig.Shard> others = new LinkedHashSet<>(config.getShards());
+			others.removeAll(shards);
+			asked += others.size();
+			failed += gather(others, query, text, matches);
+		}
+		if (failed > 0 && failed == asked) {
+			throw new RuntimeException("Every shard failed for " + text);
+		}
+		// same order as a single standardizer: score, then id
+		matches.sort((m1, m2) -> m1.score != m2.score ? Double.compare(m2.score, m1.score) : Integer.compare(m1.id, m2.id));
+		// top-level places and shared ancestors live in every shard, so the same place can come back more than once
+		List<ShardServer.Match> result = new ArrayList<>();
+		Set<Integer> seen = new HashSet<>();
+		for (ShardServer.Match match : matches) {
+			if (result.size() < options.numResults && seen.add(match.id)) {
+				result.add(match);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Ask shards in parallel and add what they return to matches
+	 * @return the number of shards that failed, were busy, or timed out
+	 */
+	private int gather(Set<ShardConfig.Shard> shards, String query, String text, List<ShardServer.Match> matches) {
+		Map<ShardConfig.Shard, Future<List<ShardServer.Match>>> futures = new LinkedHashMap<>();
+		int failed = 0;
+		for (ShardConfig.Shard shard : shards) {
+			String url = shard.getUrl() + query;
+			try {
+				futures.put(shard, executors.get(shard).submit(() -> get(url)));
+			}
+			catch (RejectedExecutionException e) {
+				logger.warning("Shard " + shard.getName() + " busy for " + text);
+				failed++;
+			}
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+		for (Map.Entry<ShardConfig.Shard, Future<List<ShardServer.Match>>> entry : futures.entrySet()) {
+			try {
+				matches.addAll(entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted waiting for shard");
+			}
+			catch (ExecutionException e) {
+				logger.warning("Shard " + entry.getKey().getName() + " failed for " + text + ": " + e.getCause());
+				failed++;
+			}
+			catch (TimeoutException e) {
+				entry.getValue().cancel(true);
+				logger.warning("Shard " + entry.getKey().getName() + " timed out for " + text);
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	private static String encode(String s) {
+		try {
+			return URLEncoder.encode(s, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static List<ShardServer.Match> get(String url) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setConnectTimeout(TIMEOUT_MILLIS);
+		conn.setReadTimeout(TIMEOUT_MILLIS);
+		try (Reader r = new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8)) {
+			return gson.fromJson(r, MATCH_LIST);
+		}
+		finally {
+			conn.disconnect();
+		}
+	}
+
+	@Override
+	public void close() {
+		for (ExecutorService executor : executors.values()) {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.shard;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.Gson;
+import com.rootscity.places.standardize.Place;
+import com.rootscity.places.standardize.StandardizeOptions;
+import com.rootscity.places.standardize.Standardizer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves one shard over http. Start it with PLACES_DIR pointing at a directory written by ShardBuilder.
+ *
+ * GET /ready returns 200 once the index is loaded (and, in database mode, the caches prefetched), 503 before
+ * GET /standardize?text=...&defaultCountry=...&mode=BEST&numResults=1 returns a json list of matches
+ */
+public class ShardServer {
+	private static final Gson gson = new Gson();
+
+	/**
+	 * One match as returned by the shard
+	 */
+	public static class Match {
+		public int id;
+		public String name;
+		public String fullName;
+		public int level;
+		public double score;
+	}
+
+	// callers repeat the same few option combinations; resolve each default country once
+	private final Cache<String, StandardizeOptions> optionsCache = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+	@Option(name = "-port", required = true, usage = "port to listen on")
+	private int port;
+
+	// set once the Standardizer class has loaded its index; /ready mustn't touch the class before, it would wait for the load
+	private volatile boolean loaded = false;
+
+	public static void main(String[] args) throws IOException {
+		ShardServer server = new ShardServer();
+		CmdLineParser parser = new CmdLineParser(server);
+		try {
+			parser.parseArgument(args);
+		}
+		catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		server.start();
+	}
+
+	public void start() throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		Thread loader = new Thread(() -> {
+			Standardizer.getInstance();
+			loaded = true;
+		}, "index-load");
+		loader.setDaemon(true);
+		loader.start();
+		server.createContext("/ready", exchange ->
+				respond(exchange, loaded && Standardizer.getInstance().isReady() ? 200 : 503, "{}"));
+		server.createContext("/standardize", this::standardize);
+		server.setExecutor(Executors.newFixedThreadPool(Standardizer.CONCURRENCY));
+		server.start();
+		System.out.println("Shard listening on port " + port);
+	}
+
+	private void standardize(HttpExchange exchange) throws IOException {
+		Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+		String text = params.get("text");
+		if (text == null) {
+			respond(exchange, 400, "{\"error\":\"text is required\"}");
+			return;
+		}
+		StandardizeOptions options;
+		try {
+			Standardizer.Mode mode = params.containsKey("mode") ? Standardizer.Mode.valueOf(params.get("mode")) : Standardizer.Mode.BEST;
+			int numResults = params.containsKey("numResults") ? Integer.parseInt(params.get("numResults")) : 1;
+			String defaultCountry = params.get("defaultCountry");
+			options = optionsCache.get((defaultCountry == null ? "" : defaultCountry) + "|" + mode + "|" + numResults,
+					() -> Standardizer.getInstance().compileOptions(defaultCountry, mode, numResults));
+		}
+		catch (IllegalArgumentException e) {
+			// bad mode or numResults; NumberFormatException is an IllegalArgumentException
+			respond(exchange, 400, gson.toJson(Collections.singletonMap("error", e.getMessage())));
+			return;
+		}
+		catch (ExecutionException e) {
+			respond(exchange, 400, gson.toJson(Collections.singletonMap("error", "Error resolving options: " + e.getCause().getMessage())));
+			return;
+		}
+
+		List<Match> matches = new ArrayList<>();
+		for (Standardizer.PlaceScore ps : Standardizer.getInstance().standardize(options, text)) {
+			Place p = ps.getPlace();
+			Match match = new Match();
+			match.id = p.getId();
+			match.name = p.getName();
+			match.fullName = p.getFullName();
+			match.level = p.getLevel();
+			match.score = ps.getScore();
+			matches.add(match);
+		}
+		respond(exchange, 200, gson.toJson(matches));
+	}
+
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<>();
+		if (query != null) {
+			for (String param : query.split("&")) {
+				int pos = param.indexOf('=');
+				if (pos > 0) {
+					params.put(URLDecoder.decode(param.substring(0, pos), "UTF-8"), URLDecoder.decode(param.substring(pos + 1), "UTF-8"));
+				}
+			}
+		}
+		return params;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
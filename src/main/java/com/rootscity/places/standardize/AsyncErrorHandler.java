@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands error events to another ErrorHandler on a background thread.
+ * Standardize only puts the event on a bounded queue; the expensive event arguments are computed by the consumer.
+ * When the consumer falls behind and the queue is full, events are dropped (and counted) instead of slowing standardize down.
+ */
+public class AsyncErrorHandler implements ErrorHandler, AutoCloseable {
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private static Logger logger = Logger.getLogger("places.standardize");
+
+	private final ErrorHandler delegate;
+	private final BlockingQueue<ErrorEvent> queue;
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final Thread consumer;
+	private volatile boolean closed = false;
+
+	public AsyncErrorHandler(ErrorHandler delegate) {
+		this(delegate, DEFAULT_CAPACITY);
+	}
+
+	public AsyncErrorHandler(ErrorHandler delegate, int capacity) {
+		this.delegate = delegate;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.consumer = new Thread(this::consume, "error-events");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	@Override
+	public void handle(ErrorEvent event) {
+		if (closed || !queue.offer(event)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void consume() {
+		while (!closed || !queue.isEmpty()) {
+			try {
+				ErrorEvent event = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (event != null) {
+					event.deliverTo(delegate);
+					delivered.incrementAndGet();
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Error handler failed", e);
+			}
+		}
+	}
+
+	/**
+	 * @return number of events dropped because the queue was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * Stop accepting events and wait for the queued ones to be delivered
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		closed = true;
+		consumer.join();
+	}
+
+	// events reported directly rather than through handle() have their arguments already computed
+
+	@Override
+	public void tokenNotFound(String text, List<List<String>> levels, int levelNumber, Collection<Integer> matchedParentIds) {
+		handle(ErrorEvent.computed(ErrorEvent.Type.TOKEN_NOT_FOUND, text, levels, levelNumber, matchedParentIds, null));
+	}
+
+	@Override
+	public void skippingParentLevel(String text, List<List<String>> levels, int levelNumber, Collection<Integer> matchedPlaceIds) {
+		handle(ErrorEvent.computed(ErrorEvent.Type.SKIPPING_PARENT_LEVEL, text, levels, levelNumber, matchedPlaceIds, null));
+	}
+
+	@Override
+	public void typeNotFound(String text, List<List<String>> levels, int levelNumber, Collection<Integer> matchedPlaceIds) {
+		handle(ErrorEvent.computed(ErrorEvent.Type.TYPE_NOT_FOUND, text, levels, levelNumber, matchedPlaceIds, null));
+	}
+
+	@Override
+	public void ambiguous(String text, List<List<String>> levels, Collection<Integer> matchedPlaceIds, Place topPlace) {
+		handle(ErrorEvent.computed(ErrorEvent.Type.AMBIGUOUS, text, levels, -1, matchedPlaceIds, topPlace));
+	}
+
+	@Override
+	public void placeNotFound(String text, List<List<String>> levels) {
+		handle(ErrorEvent.computed(ErrorEvent.Type.PLACE_NOT_FOUND, text, levels, -1, null, null));
+	}
+
+	@Override
+	public void budgetExceeded(String text, List<List<String>> levels, int levelNumber) {
+		handle(ErrorEvent.computed(ErrorEvent.Type.BUDGET_EXCEEDED, text, levels, levelNumber, null, null));
+	}
+}
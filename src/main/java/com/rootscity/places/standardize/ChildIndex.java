@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Children of every place in compressed sparse row form, indexed by place id:
+ * the children of id are children[offsets[id]] to children[offsets[id + 1] - 1].
+ * A place is a child of its located-in place and of each of its also-located-in places.
+ * Descendant counts come from the hierarchy the children are ordered by, so they follow located-in links only.
+ */
+class ChildIndex {
+	private final int[] offsets;
+	private final int[] children;
+	private final Hierarchy hierarchy;
+
+	private ChildIndex(int[] offsets, int[] children, Hierarchy hierarchy) {
+		this.offsets = offsets;
+		this.children = children;
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Index the places whose links were collected in links; the children of each place are kept in DFS order
+	 */
+	static ChildIndex build(PlaceLinks links, Hierarchy hierarchy) {
+		BitSet present = links.getPresent();
+		int size = links.size();
+		int[] parent = links.getParents();
+
+		int[] offsets = new int[size + 1];
+		for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+			if (isParent(parent[id], id, present)) {
+				offsets[parent[id] + 1]++;
+			}
+			for (int alsoId : links.getAlsoParents(id)) {
+				if (isParent(alsoId, id, present) && alsoId != parent[id]) {
+					offsets[alsoId + 1]++;
+				}
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		int[] children = new int[offsets[size]];
+		int[] fill = Arrays.copyOf(offsets, size);
+		for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+			if (isParent(parent[id], id, present)) {
+				children[fill[parent[id]]++] = id;
+			}
+			for (int alsoId : links.getAlsoParents(id)) {
+				if (isParent(alsoId, id, present) && alsoId != parent[id]) {
+					children[fill[alsoId]++] = id;
+				}
+			}
+		}
+		for (int id = 0; id < size; id++) {
+			if (offsets[id + 1] - offsets[id] > 1) {
+				int[] sorted = hierarchy.sortByRank(Arrays.copyOfRange(children, offsets[id], offsets[id + 1]));
+				System.arraycopy(sorted, 0, children, offsets[id], sorted.length);
+			}
+		}
+		return new ChildIndex(offsets, children, hierarchy);
+	}
+
+	private static boolean isParent(int parentId, int id, BitSet present) {
+		return parentId > 0 && parentId != id && present.get(parentId);
+	}
+
+	int[] getChildren(int id) {
+		if (id < 0 || id + 1 >= offsets.length) {
+			return new int[0];
+		}
+		return Arrays.copyOfRange(children, offsets[id], offsets[id + 1]);
+	}
+
+	int getChildCount(int id) {
+		return id < 0 || id + 1 >= offsets.length ? 0 : offsets[id + 1] - offsets[id];
+	}
+
+	/**
+	 * @return number of places below id in the located-in tree; the hierarchy ranks them right after id
+	 */
+	int getDescendantCount(int id) {
+		int rank = hierarchy.getRank(id);
+		return rank == Hierarchy.MISSING ? 0 : hierarchy.getEnd(id) - rank - 1;
+	}
+
+	/**
+	 * Places below id, breadth first, each once even if reachable through several parents
+	 * @param maxDepth 1 for the children only
+	 */
+	int[] getDescendants(int id, int maxDepth) {
+		int[] result = new int[16];
+		int count = 0;
+		BitSet seen = new BitSet();
+		int levelStart = 0;
+		// the first level is the children of id, pretend id was found at depth 0
+		int[] frontier = {id};
+		int frontierSize = 1;
+		for (int depth = 1; depth <= maxDepth && frontierSize > 0; depth++) {
+			levelStart = count;
+			for (int f = 0; f < frontierSize; f++) {
+				int parentId = frontier[f];
+				if (parentId < 0 || parentId + 1 >= offsets.length) {
+					continue;
+				}
+				for (int i = offsets[parentId]; i < offsets[parentId + 1]; i++) {
+					int child = children[i];
+					if (child != id && !seen.get(child)) {
+						seen.set(child);
+						if (count == result.length) {
+							result = Arrays.copyOf(result, count * 2);
+						}
+						result[count++] = child;
+					}
+				}
+			}
+			frontier = Arrays.copyOfRange(result, levelStart, count);
+			frontierSize = frontier.length;
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	byte[] toBytes() {
+		ByteBuffer buf = ByteBuffer.allocate(4 + 4 * offsets.length + 4 + 4 * children.length);
+		putInts(buf, offsets);
+		putInts(buf, children);
+		return buf.array();
+	}
+
+	/**
+	 * @param hierarchy the hierarchy the index was built with
+	 */
+	static ChildIndex fromBytes(byte[] data, Hierarchy hierarchy) {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		return new ChildIndex(getInts(buf), getInts(buf), hierarchy);
+	}
+
+	private static void putInts(ByteBuffer buf, int[] values) {
+		buf.putInt(values.length);
+		buf.asIntBuffer().put(values);
+		buf.position(buf.position() + 4 * values.length);
+	}
+
+	private static int[] getInts(ByteBuffer buf) {
+		int[] values = new int[buf.getInt()];
+		buf.asIntBuffer().get(values);
+		buf.position(buf.position() + 4 * values.length);
+		return values;
+	}
+}
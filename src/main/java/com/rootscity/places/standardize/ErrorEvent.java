@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * One error seen while standardizing a place.
+ * The arguments ErrorHandler needs that are expensive to compute (ancestor-free place ids, the top place)
+ * are only computed when asked for, so an event can be created on the query thread and examined later on another.
+ */
+public class ErrorEvent {
+	public static enum Type {
+		TOKEN_NOT_FOUND, SKIPPING_PARENT_LEVEL, TYPE_NOT_FOUND, AMBIGUOUS, PLACE_NOT_FOUND, BUDGET_EXCEEDED
+	}
+
+	private final Standardizer standardizer;
+	private final Type type;
+	private final String text;
+	private final List<List<String>> levels;
+	private final int levelNumber;
+	private final Collection<Integer> candidateIds;
+	private final boolean removeChildIds;
+	private final int topPlaceId;
+	private Place topPlace = null;
+	private Collection<Integer> placeIds = null;
+	private boolean placeIdsComputed = false;
+
+	ErrorEvent(Standardizer standardizer, Type type, String text, List<List<String>> levels, int levelNumber,
+	           Collection<Integer> candidateIds, boolean removeChildIds, int topPlaceId) {
+		this.standardizer = standardizer;
+		this.type = type;
+		this.text = text;
+		// standardize keeps inserting levels after the event is created
+		this.levels = new ArrayList<>(levels);
+		this.levelNumber = levelNumber;
+		this.candidateIds = candidateIds;
+		this.removeChildIds = removeChildIds;
+		this.topPlaceId = topPlaceId;
+	}
+
+	static ErrorEvent tokenNotFound(Standardizer standardizer, String text, List<List<String>> levels, int levelNumber, Collection<Integer> parentIds) {
+		return new ErrorEvent(standardizer, Type.TOKEN_NOT_FOUND, text, levels, levelNumber, parentIds, true, 0);
+	}
+
+	static ErrorEvent skippingParentLevel(Standardizer standardizer, String text, List<List<String>> levels, int levelNumber, Collection<Integer> placeIds) {
+		return new ErrorEvent(standardizer, Type.SKIPPING_PARENT_LEVEL, text, levels, levelNumber, placeIds, true, 0);
+	}
+
+	static ErrorEvent typeNotFound(Standardizer standardizer, String text, List<List<String>> levels, int levelNumber, Collection<Integer> placeIds) {
+		return new ErrorEvent(standardizer, Type.TYPE_NOT_FOUND, text, levels, levelNumber, placeIds, true, 0);
+	}
+
+	static ErrorEvent ambiguous(Standardizer standardizer, String text, List<List<String>> levels, Collection<Integer> placeIds, int topPlaceId) {
+		return new ErrorEvent(standardizer, Type.AMBIGUOUS, text, levels, -1, placeIds, false, topPlaceId);
+	}
+
+	static ErrorEvent placeNotFound(Standardizer standardizer, String text, List<List<String>> levels) {
+		return new ErrorEvent(standardizer, Type.PLACE_NOT_FOUND, text, levels, -1, null, false, 0);
+	}
+
+	static ErrorEvent budgetExceeded(Standardizer standardizer, String text, List<List<String>> levels, int levelNumber) {
+		return new ErrorEvent(standardizer, Type.BUDGET_EXCEEDED, text, levels, levelNumber, null, false, 0);
+	}
+
+	/**
+	 * An event whose arguments have already been computed
+	 */
+	static ErrorEvent computed(Type type, String text, List<List<String>> levels, int levelNumber, Collection<Integer> placeIds, Place topPlace) {
+		ErrorEvent event = new ErrorEvent(null, type, text, levels, levelNumber, placeIds, false, 0);
+		event.topPlace = topPlace;
+		return event;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public List<List<String>> getLevels() {
+		return levels;
+	}
+
+	/**
+	 * @return the level the error was found at (for BUDGET_EXCEEDED, the level being matched), or -1 for AMBIGUOUS and PLACE_NOT_FOUND
+	 */
+	public int getLevelNumber() {
+		return levelNumber;
+	}
+
+	/**
+	 * @return matched place ids, without places whose ancestors were also matched; computed on first call
+	 */
+	public synchronized Collection<Integer> getPlaceIds() {
+		if (!placeIdsComputed) {
+			placeIds = removeChildIds ? standardizer.removeChildIds(candidateIds) : candidateIds;
+			placeIdsComputed = true;
+		}
+		return placeIds;
+	}
+
+	/**
+	 * @return the highest-scoring place of an AMBIGUOUS event, otherwise null
+	 */
+	public synchronized Place getTopPlace() {
+		if (topPlace == null && type == Type.AMBIGUOUS && standardizer != null) {
+			topPlace = standardizer.getPlace(topPlaceId);
+		}
+		return topPlace;
+	}
+
+	/**
+	 * Call the ErrorHandler method for this event
+	 */
+	public void deliverTo(ErrorHandler errorHandler) {
+		switch (type) {
+			case TOKEN_NOT_FOUND:
+				errorHandler.tokenNotFound(text, levels, levelNumber, getPlaceIds());
+				break;
+			case SKIPPING_PARENT_LEVEL:
+				errorHandler.skippingParentLevel(text, levels, levelNumber, getPlaceIds());
+				break;
+			case TYPE_NOT_FOUND:
+				errorHandler.typeNotFound(text, levels, levelNumber, getPlaceIds());
+				break;
+			case AMBIGUOUS:
+				errorHandler.ambiguous(text, levels, getPlaceIds(), getTopPlace());
+				break;
+			case PLACE_NOT_FOUND:
+				errorHandler.placeNotFound(text, levels);
+				break;
+			case BUDGET_EXCEEDED:
+				errorHandler.budgetExceeded(text, levels, levelNumber);
+				break;
+		}
+	}
+}
@@ -16,4 +16,18 @@ public interface ErrorHandler {
    public void typeNotFound(String text, List<List<String>> levels, int levelNumber, Collection<Integer> matchedPlaceIds);
    public void ambiguous(String text, List<List<String>> levels, Collection<Integer> matchedPlaceIds, Place topPlace);
    public void placeNotFound(String text, List<List<String>> levels);
+
+   /**
+    * Called instead of placeNotFound when the call ran out of its budget before matching any level
+    */
+   public default void budgetExceeded(String text, List<List<String>> levels, int levelNumber) {
+   }
+
+   /**
+    * Called by the standardizer for every error; the default calls the method for the event type right away.
+    * Override to defer the work, e.g. AsyncErrorHandler queues the event for another thread.
+    */
+   public default void handle(ErrorEvent event) {
+      event.deliverTo(this);
+   }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * Raw place texts whose standard place is already known, as a memory-mapped open-addressing hash.
+ * Keys are normalized with normalizeKey, so case, diacritics, punctuation and spacing within a level don't matter.
+ * The table stores a 64-bit fingerprint of each key rather than the key itself, with a check of the key's length
+ * and a second, independent hash; a text is only answered when all three match.
+ *
+ * File layout (big-endian):
+ * header: magic, version, slot count (a power of two), entry count
+ * slots: fingerprint (long, 0 = empty slot), key length (int), key hashCode (int), place id (int)
+ */
+public class ExactMatchIndex {
+	private static final int MAGIC = 0x504c4358; // PLCX
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 16;
+	private static final int SLOT_SIZE = 20;
+
+	private final MappedByteBuffer buf;
+	private final int mask;
+	private final int size;
+
+	public ExactMatchIndex(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Exact match file too large: " + file);
+			}
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buf.getInt(0) != MAGIC) {
+			throw new IOException("Not an exact match file: " + file);
+		}
+		if (buf.getInt(4) != VERSION) {
+			throw new IOException("Exact match file " + file + " has format version " + buf.getInt(4) + ", not " + VERSION +
+					"; write it again with BuildExactMatches");
+		}
+		mask = buf.getInt(8) - 1;
+		size = buf.getInt(12);
+	}
+
+	/**
+	 * Levels normalized like placeNormalizer.normalize and joined with commas; empty levels are dropped
+	 */
+	public static String normalizeKey(String text) {
+		StringBuilder key = new StringBuilder(text.length());
+		int start = 0;
+		while (start <= text.length()) {
+			int end = text.indexOf(',', start);
+			if (end < 0) {
+				end = text.length();
+			}
+			String level = placeNormalizer.getInstance().normalize(text.substring(start, end));
+			if (level.length() > 0) {
+				if (key.length() > 0) {
+					key.append(',');
+				}
+				key.append(level);
+			}
+			start = end + 1;
+		}
+		return key.toString();
+	}
+
+	// 64-bit FNV-1a over the chars, never 0 since 0 marks an empty slot
+	static long fingerprint(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 29;
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * @return the place id for text, or 0 if text isn't in the index
+	 */
+	public int lookup(String text) {
+		String key = normalizeKey(text);
+		if (key.length() == 0) {
+			return 0;
+		}
+		long fp = fingerprint(key);
+		int slot = (int) (fp ^ (fp >>> 32)) & mask;
+		while (true) {
+			int pos = HEADER_SIZE + slot * SLOT_SIZE;
+			long stored = buf.getLong(pos);
+			if (stored == 0) {
+				return 0;
+			}
+			if (stored == fp) {
+				// the same fingerprint for another key reads as unknown, and the text is matched instead
+				return buf.getInt(pos + 8) == key.length() && buf.getInt(pos + 12) == key.hashCode() ? buf.getInt(pos + 16) : 0;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Write an index of the given raw texts (normalized here) and their place ids
+	 */
+	public static void write(Map<String, Integer> placeIds, File file) throws IOException {
+		int slots = Integer.highestOneBit(Math.max(16, placeIds.size() * 2 - 1)) << 1;
+		ByteBuffer table = ByteBuffer.allocate(HEADER_SIZE + slots * SLOT_SIZE);
+		int count = 0;
+		for (Map.Entry<String, Integer> entry : placeIds.entrySet()) {
+			String key = normalizeKey(entry.getKey());
+			if (key.length() == 0 || entry.getValue() <= 0) {
+				continue;
+			}
+			long fp = fingerprint(key);
+			int slot = (int) (fp ^ (fp >>> 32)) & (slots - 1);
+			while (true) {
+				int pos = HEADER_SIZE + slot * SLOT_SIZE;
+				long stored = table.getLong(pos);
+				if (stored == 0) {
+					table.putLong(pos, fp);
+					table.putInt(pos + 8, key.length());
+					table.putInt(pos + 12, key.hashCode());
+					table.putInt(pos + 16, entry.getValue());
+					count++;
+					break;
+				}
+				if (stored == fp) {
+					// texts that normalize to the same key: the last one wins;
+					// a different key with the same fingerprint keeps the slot, and lookup rejects the other key
+					if (table.getInt(pos + 8) == key.length() && table.getInt(pos + 12) == key.hashCode()) {
+						table.putInt(pos + 16, entry.getValue());
+					}
+					break;
+				}
+				slot = (slot + 1) & (slots - 1);
+			}
+		}
+		table.putInt(0, MAGIC);
+		table.putInt(4, VERSION);
+		table.putInt(8, slots);
+		table.putInt(12, count);
+
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			try (OutputStream out = new FileOutputStream(tmpFile)) {
+				out.write(table.array());
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			tmpFile.delete();
+		}
+	}
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Place store that reads the fields used for matching straight out of a memory-mapped flat file,
+ * without deserializing a Place. Full places (alt names, sources, coordinates) come from the backing store,
+ * and are only needed for the final results.
+ * The matcher's name and type tests compare against the mapped bytes and the decoded type dictionary,
+ * so they allocate nothing; the accessors returning strings and arrays build them on each call.
+ *
+ * File layout (big-endian):
+ * header: magic, version, maxId, dictionary offset, index offset, records offset
+ * dictionary: count, then (length, utf-8 bytes) per type string
+ * index: maxId + 1 ints; record offset relative to the records section + 1, or 0 if there is no such place
+ * record: level, countryId, locatedInId, name (short length + utf-8), normalized name (short length + utf-8),
+ *         type count (short) + dictionary codes (short each), also-located-in count (short) + ids (int each);
+ *         lengths, counts and codes are unsigned
+ */
+public class FlatPlaceStore implements PlaceStore {
+	private static final int MAGIC = 0x504c4346; // PLCF
+	private static final int VERSION = 1;
+	private static final int[] NO_IDS = new int[0];
+	private static final String[] NO_TYPES = new String[0];
+	private static final int MAX_SHORT = 0xFFFF;
+
+	private final PlaceStore fullStore;
+	private final MappedByteBuffer buf;
+	private final int maxId;
+	private final int indexOffset;
+	private final int recordsOffset;
+	private final String[] dictionary;
+	private final String[] normalizedDictionary;
+
+	public FlatPlaceStore(File file, PlaceStore fullStore) throws IOException {
+		this.fullStore = fullStore;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Flat place file too large: " + file);
+			}
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+			throw new IOException("Not a flat place file: " + file);
+		}
+		maxId = buf.getInt(8);
+		int dictionaryOffset = buf.getInt(12);
+		indexOffset = buf.getInt(16);
+		recordsOffset = buf.getInt(20);
+		int count = buf.getInt(dictionaryOffset);
+		dictionary = new String[count];
+		normalizedDictionary = new String[count];
+		int pos = dictionaryOffset + 4;
+		for (int i = 0; i < count; i++) {
+			int len = buf.getInt(pos);
+			dictionary[i] = StringTable.getInstance().intern(readString(pos + 4, len));
+			normalizedDictionary[i] = placeNormalizer.getInstance().normalize(dictionary[i]);
+			pos += 4 + len;
+		}
+	}
+
+	/**
+	 * Write the matching fields of every place in store to file
+	 */
+	public static void write(PlaceStore store, File file) throws IOException {
+		Map<String, Integer> codes = new LinkedHashMap<>();
+		int[][] offsets = {new int[1024]};
+		int[] maxId = {0};
+		File recordsFile = File.createTempFile("places", ".flat.tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			try (DataOutputStream records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordsFile)))) {
+				IOException[] error = {null};
+				store.forEachPlace(p -> {
+					if (error[0] != null) {
+						return;
+					}
+					try {
+						int id = p.getId();
+						if (id >= offsets[0].length) {
+							offsets[0] = Arrays.copyOf(offsets[0], Math.max(id + 1, offsets[0].length * 2));
+						}
+						if (records.size() >= Integer.MAX_VALUE - 1) {
+							throw new IOException("Flat place file too large");
+						}
+						offsets[0][id] = records.size() + 1;
+						maxId[0] = Math.max(maxId[0], id);
+						records.writeInt(p.getLevel());
+						records.writeInt(p.getCountryId());
+						records.writeInt(p.getLocatedInId());
+						writeString(records, p.getName());
+						writeString(records, placeNormalizer.getInstance().normalize(p.getName()));
+						if (p.getTypes().length > MAX_SHORT || p.getAlsoLocatedInIds().length > MAX_SHORT) {
+							throw new IOException("Place " + id + " has more than " + MAX_SHORT + " types or also-located-in ids");
+						}
+						records.writeShort(p.getTypes().length);
+						for (String type : p.getTypes()) {
+							Integer code = codes.get(type);
+							if (code == null) {
+								code = codes.size();
+								if (code > MAX_SHORT) {
+									throw new IOException("More than " + (MAX_SHORT + 1) + " distinct types");
+								}
+								codes.put(type, code);
+							}
+							records.writeShort(code);
+						}
+						records.writeShort(p.getAlsoLocatedInIds().length);
+						for (int alii : p.getAlsoLocatedInIds()) {
+							records.writeInt(alii);
+						}
+					}
+					catch (IOException e) {
+						error[0] = e;
+					}
+				});
+				if (error[0] != null) {
+					throw error[0];
+				}
+			}
+
+			ByteArrayOutputStream dictBytes = new ByteArrayOutputStream();
+			DataOutputStream dict = new DataOutputStream(dictBytes);
+			dict.writeInt(codes.size());
+			for (String type : codes.keySet()) {
+				byte[] utf8 = type.getBytes(StandardCharsets.UTF_8);
+				dict.writeInt(utf8.length);
+				dict.write(utf8);
+			}
+			dict.close();
+
+			int headerSize = 24;
+			long indexOffset = headerSize + dictBytes.size();
+			long recordsOffset = indexOffset + 4L * (maxId[0] + 1);
+			if (recordsOffset + recordsFile.length() > Integer.MAX_VALUE) {
+				throw new IOException("Flat place file too large");
+			}
+			File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+			try {
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeInt(maxId[0]);
+					out.writeInt(headerSize);
+					out.writeInt((int) indexOffset);
+					out.writeInt((int) recordsOffset);
+					dictBytes.writeTo(out);
+					for (int id = 0; id <= maxId[0]; id++) {
+						out.writeInt(offsets[0][id]);
+					}
+					Files.copy(recordsFile.toPath(), out);
+				}
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally {
+				tmpFile.delete();
+			}
+		}
+		finally {
+			recordsFile.delete();
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] utf8 = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+		int len = Math.min(utf8.length, MAX_SHORT);
+		out.writeShort(len);
+		out.write(utf8, 0, len);
+	}
+
+	private String readString(int pos, int len) {
+		byte[] bytes = new byte[len];
+		for (int i = 0; i < len; i++) {
+			bytes[i] = buf.get(pos + i);
+		}
+		return new String(bytes, 0, len, StandardCharsets.UTF_8);
+	}
+
+	// absolute position of the record for id, or -1
+	private int record(int id) {
+		if (id < 0 || id > maxId) {
+			return -1;
+		}
+		int rel = buf.getInt(indexOffset + 4 * id);
+		return rel == 0 ? -1 : recordsOffset + rel - 1;
+	}
+
+	// position of the type count: after level, countryId, locatedInId and the two names
+	private int typesPos(int pos) {
+		pos += 12;
+		pos += 2 + (buf.getShort(pos) & 0xFFFF);
+		pos += 2 + (buf.getShort(pos) & 0xFFFF);
+		return pos;
+	}
+
+	// position of the normalized name's length
+	private int normalizedNamePos(int pos) {
+		return pos + 14 + (buf.getShort(pos + 12) & 0xFFFF);
+	}
+
+	/**
+	 * @return true if the utf-8 bytes at pos, len long, contain token; compared in the mapped file without decoding.
+	 * A byte match is a character match, since utf-8 never starts a character inside another one.
+	 */
+	private boolean contains(int pos, int len, String token) {
+		int n = token.length();
+		for (int i = 0; i < n; i++) {
+			if (token.charAt(i) >= 0x80) {
+				return contains(pos, len, token.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		next:
+		for (int start = pos, last = pos + len - n; start <= last; start++) {
+			for (int i = 0; i < n; i++) {
+				if (buf.get(start + i) != (byte) token.charAt(i)) {
+					continue next;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private boolean contains(int pos, int len, byte[] token) {
+		next:
+		for (int start = pos, last = pos + len - token.length; start <= last; start++) {
+			for (int i = 0; i < token.length; i++) {
+				if (buf.get(start + i) != token[i]) {
+					continue next;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Place getPlace(int id) {
+		return fullStore.getPlace(id);
+	}
+
+	@Override
+	public int getLevel(int id) {
+		int pos = record(id);
+		return pos < 0 ? 0 : buf.getInt(pos);
+	}
+
+	@Override
+	public int getCountryId(int id) {
+		int pos = record(id);
+		return pos < 0 ? 0 : buf.getInt(pos + 4);
+	}
+
+	@Override
+	public int getLocatedInId(int id) {
+		int pos = record(id);
+		return pos < 0 ? 0 : buf.getInt(pos + 8);
+	}
+
+	@Override
+	public int[] getAlsoLocatedInIds(int id) {
+		int pos = record(id);
+		if (pos < 0) {
+			return NO_IDS;
+		}
+		pos = typesPos(pos);
+		pos += 2 + 2 * (buf.getShort(pos) & 0xFFFF);
+		int count = buf.getShort(pos) & 0xFFFF;
+		if (count == 0) {
+			return NO_IDS;
+		}
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = buf.getInt(pos + 2 + 4 * i);
+		}
+		return ids;
+	}
+
+	@Override
+	public String getPlaceName(int id) {
+		int pos = record(id);
+		return pos < 0 ? "" : readString(pos + 14, buf.getShort(pos + 12) & 0xFFFF);
+	}
+
+	@Override
+	public String getNormalizedName(int id) {
+		int pos = record(id);
+		if (pos < 0) {
+			return "";
+		}
+		pos = normalizedNamePos(pos);
+		return readString(pos + 2, buf.getShort(pos) & 0xFFFF);
+	}
+
+	@Override
+	public boolean normalizedNameContains(int id, String token) {
+		int pos = record(id);
+		if (pos < 0) {
+			return token.isEmpty();
+		}
+		pos = normalizedNamePos(pos);
+		return contains(pos + 2, buf.getShort(pos) & 0xFFFF, token);
+	}
+
+	@Override
+	public boolean normalizedTypeContains(int id, String token) {
+		int pos = record(id);
+		if (pos < 0) {
+			return false;
+		}
+		pos = typesPos(pos);
+		int count = buf.getShort(pos) & 0xFFFF;
+		for (int i = 0; i < count; i++) {
+			if (normalizedDictionary[buf.getShort(pos + 2 + 2 * i) & 0xFFFF].indexOf(token) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String[] getTypes(int id) {
+		int pos = record(id);
+		if (pos < 0) {
+			return NO_TYPES;
+		}
+		pos = typesPos(pos);
+		int count = buf.getShort(pos) & 0xFFFF;
+		if (count == 0) {
+			return NO_TYPES;
+		}
+		String[] types = new String[count];
+		for (int i = 0; i < count; i++) {
+			types[i] = dictionary[buf.getShort(pos + 2 + 2 * i) & 0xFFFF];
+		}
+		return types;
+	}
+
+	@Override
+	public void forEachPlace(Consumer<Place> consumer) {
+		fullStore.forEachPlace(consumer);
+	}
+
+	// from the record index, without reading the backing store
+	@Override
+	public void forEachId(IntConsumer consumer) {
+		for (int id = 0; id <= maxId; id++) {
+			if (buf.getInt(indexOffset + 4 * id) != 0) {
+				consumer.accept(id);
+			}
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "flat";
+	}
+}
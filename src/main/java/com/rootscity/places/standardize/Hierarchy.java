@@ -0,0 +1,313 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Depth-first numbering of the located-in tree, indexed by place id.
+ * Every place gets a rank in DFS pre-order and the (exclusive) rank where its subtree ends,
+ * so the places located in p, directly or not, are exactly those ranked in (rank(p), end(p)).
+ * Also-located-in edges don't fit in the tree; places with one on their located-in chain are flagged,
+ * and callers have to walk their ancestors instead.
+ */
+class Hierarchy {
+	static final int MISSING = -1;
+
+	private final int[] ranks;
+	private final int[] ends;
+	private final BitSet altAncestors;
+	// inverse of ranks
+	private final int[] ids;
+	// ranks of the places with an also-located-in link on their chain
+	private final BitSet altRanks = new BitSet();
+
+	private Hierarchy(int[] ranks, int[] ends, BitSet altAncestors) {
+		this.ranks = ranks;
+		this.ends = ends;
+		this.altAncestors = altAncestors;
+		int count = 0;
+		for (int rank : ranks) {
+			if (rank != MISSING) {
+				count++;
+			}
+		}
+		ids = new int[count];
+		for (int id = 0; id < ranks.length; id++) {
+			if (ranks[id] != MISSING) {
+				ids[ranks[id]] = id;
+				if (altAncestors.get(id)) {
+					altRanks.set(ranks[id]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Number the places whose links were collected in links
+	 */
+	static Hierarchy build(PlaceLinks links) {
+		BitSet present = links.getPresent();
+		int size = links.size();
+		int[] parent = links.getParents();
+
+		// children of every place in CSR form
+		int[] childStart = new int[size + 1];
+		for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+			if (isChildOf(id, parent[id], present)) {
+				childStart[parent[id] + 1]++;
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			childStart[i + 1] += childStart[i];
+		}
+		int[] children = new int[childStart[size]];
+		int[] fill = Arrays.copyOf(childStart, size);
+		for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+			if (isChildOf(id, parent[id], present)) {
+				children[fill[parent[id]]++] = id;
+			}
+		}
+
+		int[] ranks = new int[size];
+		int[] ends = new int[size];
+		Arrays.fill(ranks, MISSING);
+		BitSet altAncestors = new BitSet();
+		int[] stack = new int[64];
+		int[] next = new int[64];
+		int rank = 0;
+		// roots first; places on a located-in cycle are never reached from a root and start a tree of their own
+		for (int pass = 0; pass < 2; pass++) {
+			for (int root = present.nextSetBit(0); root >= 0; root = present.nextSetBit(root + 1)) {
+				if (ranks[root] != MISSING || (pass == 0 && isChildOf(root, parent[root], present))) {
+					continue;
+				}
+				int depth = 0;
+				stack[0] = root;
+				next[0] = childStart[root];
+				ranks[root] = rank++;
+				if (links.getAlsoParents(root).length > 0) {
+					altAncestors.set(root);
+				}
+				while (depth >= 0) {
+					int id = stack[depth];
+					if (next[depth] < childStart[id + 1]) {
+						int child = children[next[depth]++];
+						if (ranks[child] != MISSING) {
+							continue;
+						}
+						ranks[child] = rank++;
+						if (altAncestors.get(id) || links.getAlsoParents(child).length > 0) {
+							altAncestors.set(child);
+						}
+						if (++depth == stack.length) {
+							stack = Arrays.copyOf(stack, depth * 2);
+							next = Arrays.copyOf(next, depth * 2);
+						}
+						stack[depth] = child;
+						next[depth] = childStart[child];
+					} else {
+						ends[id] = rank;
+						depth--;
+					}
+				}
+			}
+		}
+		return new Hierarchy(ranks, ends, altAncestors);
+	}
+
+	private static boolean isChildOf(int id, int parentId, BitSet present) {
+		return parentId > 0 && parentId != id && present.get(parentId);
+	}
+
+	int getRank(int id) {
+		return id >= 0 && id < ranks.length ? ranks[id] : MISSING;
+	}
+
+	/**
+	 * @return the place with this rank
+	 */
+	int getId(int rank) {
+		return ids[rank];
+	}
+
+	/**
+	 * @return the ranks of ids in ascending order; ids that aren't places are left out
+	 */
+	int[] toRanks(int[] placeIds) {
+		int[] result = new int[placeIds.length];
+		int count = 0;
+		for (int id : placeIds) {
+			int rank = getRank(id);
+			if (rank != MISSING) {
+				result[count++] = rank;
+			}
+		}
+		Arrays.sort(result, 0, count);
+		// a posting list may name a place twice
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || result[i] != result[distinct - 1]) {
+				result[distinct++] = result[i];
+			}
+		}
+		return Arrays.copyOf(result, distinct);
+	}
+
+	/**
+	 * @return exclusive end of the ranks of the places located in id
+	 */
+	int getEnd(int id) {
+		return ends[id];
+	}
+
+	/**
+	 * @return whether the ranks alone decide which places id is located in
+	 */
+	boolean isTreeOnly(int id) {
+		return getRank(id) != MISSING && !altAncestors.get(id);
+	}
+
+	/**
+	 * @return true if id is located in ancestorId (directly or not) through located-in links only
+	 */
+	boolean isTreeDescendant(int id, int ancestorId) {
+		int rank = getRank(id);
+		int ancestorRank = getRank(ancestorId);
+		return rank != MISSING && ancestorRank != MISSING && rank > ancestorRank && rank < ends[ancestorId];
+	}
+
+	/**
+	 * Sort ids by rank, places without a rank last
+	 */
+	int[] sortByRank(int[] ids) {
+		long[] keyed = new long[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			int rank = getRank(ids[i]);
+			keyed[i] = ((long) (rank == MISSING ? Integer.MAX_VALUE : rank) << 32) | (ids[i] & 0xffffffffL);
+		}
+		Arrays.sort(keyed);
+		int[] sorted = new int[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			sorted[i] = (int) keyed[i];
+		}
+		return sorted;
+	}
+
+	/**
+	 * The union of the rank intervals strictly below a set of places, as sorted disjoint intervals
+	 */
+	static class Intervals {
+		private final int[] starts;
+		private final int[] ends;
+		private int cursor = 0;
+		private int lastRank = -1;
+
+		private Intervals(int[] starts, int[] ends) {
+			this.starts = starts;
+			this.ends = ends;
+		}
+
+		/**
+		 * True if rank is in one of the intervals.
+		 * Calls with ascending ranks are a merge join; a smaller rank than the last one falls back to a binary search.
+		 */
+		boolean contains(int rank) {
+			if (rank < lastRank) {
+				int pos = Arrays.binarySearch(starts, rank);
+				cursor = pos >= 0 ? pos : Math.max(0, -pos - 2);
+			}
+			lastRank = rank;
+			while (cursor < starts.length && ends[cursor] <= rank) {
+				cursor++;
+			}
+			return cursor < starts.length && starts[cursor] <= rank;
+		}
+	}
+
+	/**
+	 * @return the ranks in a posting list of ranks that are in intervals, or whose places aren't tree-only
+	 * and so have to be checked another way; skips the rest of the list
+	 */
+	int[] filterRanks(byte[] list, Intervals intervals) {
+		return PostingList.intersect(list, intervals.starts, intervals.ends, altRanks);
+	}
+
+	/**
+	 * @return the ranks of every place located in one of ancestorIds through located-in links
+	 */
+	Intervals descendantIntervals(Collection<Integer> ancestorIds) {
+		long[] keyed = new long[ancestorIds.size()];
+		int n = 0;
+		for (int id : ancestorIds) {
+			int rank = getRank(id);
+			if (rank != MISSING && ends[id] > rank + 1) {
+				keyed[n++] = ((long) (rank + 1) << 32) | ends[id];
+			}
+		}
+		Arrays.sort(keyed, 0, n);
+		int[] starts = new int[n];
+		int[] intervalEnds = new int[n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			int start = (int) (keyed[i] >>> 32);
+			int end = (int) keyed[i];
+			// subtrees are nested or disjoint, so an interval starting inside the previous one is contained in it
+			if (count > 0 && start < intervalEnds[count - 1]) {
+				continue;
+			}
+			starts[count] = start;
+			intervalEnds[count] = end;
+			count++;
+		}
+		return new Intervals(Arrays.copyOf(starts, count), Arrays.copyOf(intervalEnds, count));
+	}
+
+	byte[] toBytes() {
+		long[] altWords = altAncestors.toLongArray();
+		ByteBuffer buf = ByteBuffer.allocate(4 + 8 * ranks.length + 4 + 8 * altWords.length);
+		buf.putInt(ranks.length);
+		for (int rank : ranks) {
+			buf.putInt(rank);
+		}
+		for (int end : ends) {
+			buf.putInt(end);
+		}
+		buf.putInt(altWords.length);
+		for (long word : altWords) {
+			buf.putLong(word);
+		}
+		return buf.array();
+	}
+
+	static Hierarchy fromBytes(byte[] data) {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		int size = buf.getInt();
+		int[] ranks = new int[size];
+		int[] ends = new int[size];
+		buf.asIntBuffer().get(ranks);
+		buf.position(buf.position() + 4 * size);
+		buf.asIntBuffer().get(ends);
+		buf.position(buf.position() + 4 * size);
+		long[] altWords = new long[buf.getInt()];
+		buf.asLongBuffer().get(altWords);
+		return new Hierarchy(ranks, ends, BitSet.valueOf(altWords));
+	}
+}
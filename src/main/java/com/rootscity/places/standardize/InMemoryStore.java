@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import com.google.common.primitives.Ints;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Place and word store held entirely on the heap in flat arrays:
+ * places are found through an id-to-offset array, words through an open-addressing hash table,
+ * and their posting lists as ranges of one int array (CSR). getIds returns a view of the range; lookup copies it.
+ * Needs enough heap for the whole gazetteer, but a lookup never touches MapDB or the database.
+ */
+public class InMemoryStore implements PlaceStore, WordStore {
+	private final int[] offsetById;
+	private final Place[] places;
+
+	private final String[] words;
+	// hash table of word number + 1; 0 marks an empty slot
+	private final int[] wordSlots;
+	// postings of word w are postingIds[postingOffsets[w]] to postingIds[postingOffsets[w + 1] - 1]
+	private final int[] postingOffsets;
+	private final int[] postingIds;
+
+	/**
+	 * Copy the contents of a place index and a word index, e.g. the MapDB indexes of places.db
+	 */
+	public InMemoryStore(Map<Integer, Place> placeIndex, Map<String, int[]> wordIndex) {
+		int maxId = 0;
+		for (int id : placeIndex.keySet()) {
+			maxId = Math.max(maxId, id);
+		}
+		offsetById = new int[maxId + 1];
+		Arrays.fill(offsetById, -1);
+		places = new Place[placeIndex.size()];
+		int offset = 0;
+		for (Map.Entry<Integer, Place> entry : placeIndex.entrySet()) {
+			places[offset] = entry.getValue();
+			offsetById[entry.getKey()] = offset++;
+		}
+
+		int numWords = wordIndex.size();
+		words = new String[numWords];
+		postingOffsets = new int[numWords + 1];
+		long numPostings = 0;
+		for (int[] ids : wordIndex.values()) {
+			numPostings += ids.length;
+		}
+		if (numPostings > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many postings for one array: " + numPostings);
+		}
+		postingIds = new int[(int) numPostings];
+		wordSlots = new int[Integer.highestOneBit(Math.max(numWords, 1)) * 4];
+		int w = 0;
+		for (Map.Entry<String, int[]> entry : wordIndex.entrySet()) {
+			words[w] = entry.getKey();
+			int[] ids = entry.getValue();
+			System.arraycopy(ids, 0, postingIds, postingOffsets[w], ids.length);
+			postingOffsets[w + 1] = postingOffsets[w] + ids.length;
+			int slot = slot(entry.getKey());
+			while (wordSlots[slot] != 0) {
+				slot = (slot + 1) & (wordSlots.length - 1);
+			}
+			wordSlots[slot] = ++w;
+		}
+	}
+
+	private int slot(String word) {
+		int h = word.hashCode() * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (wordSlots.length - 1);
+	}
+
+	@Override
+	public Place getPlace(int id) {
+		if (id < 0 || id >= offsetById.length) {
+			return null;
+		}
+		int offset = offsetById[id];
+		return offset < 0 ? null : places[offset];
+	}
+
+	@Override
+	public void forEachPlace(Consumer<Place> consumer) {
+		for (Place p : places) {
+			consumer.accept(p);
+		}
+	}
+
+	// word number, or -1 if the word isn't indexed
+	private int find(String word) {
+		int slot = slot(word);
+		int w;
+		while ((w = wordSlots[slot]) != 0) {
+			if (words[w - 1].equals(word)) {
+				return w - 1;
+			}
+			slot = (slot + 1) & (wordSlots.length - 1);
+		}
+		return -1;
+	}
+
+	@Override
+	public int[] lookup(String word) {
+		int w = find(word);
+		return w < 0 ? null : Arrays.copyOfRange(postingIds, postingOffsets[w], postingOffsets[w + 1]);
+	}
+
+	/**
+	 * @return the posting list of word as a view of its range of the shared array, without copying, or null if the word isn't indexed;
+	 * it must not be modified
+	 */
+	public List<Integer> getIds(String word) {
+		int w = find(word);
+		return w < 0 ? null : Ints.asList(postingIds).subList(postingOffsets[w], postingOffsets[w + 1]);
+	}
+
+	@Override
+	public String getName() {
+		return "memory";
+	}
+}
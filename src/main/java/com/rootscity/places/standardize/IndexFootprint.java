@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Estimated heap footprint of a set of places.
+ * Sizes assume a 64-bit JVM with compressed oops; they are estimates, not measurements.
+ */
+public class IndexFootprint {
+	private static final int OBJECT_HEADER = 12;
+	private static final int ARRAY_HEADER = 16;
+	private static final int REFERENCE = 4;
+
+	private long places = 0;
+	private long altNames = 0;
+	private long sources = 0;
+	private long dictionaryReferences = 0;
+	private long placeBytes = 0;
+	private long sharedStringBytes = 0;
+	private long unsharedStringBytes = 0;
+	private final Set<String> distinctStrings = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+
+	static long stringBytes(String s) {
+		// String object + backing array
+		return s == null ? 0 : align(OBJECT_HEADER + 12) + align(ARRAY_HEADER + 2L * s.length());
+	}
+
+	private static long arrayBytes(int length) {
+		return align(ARRAY_HEADER + (long) REFERENCE * length);
+	}
+
+	// count an interned string: its own bytes only the first time we see the instance
+	private void addDictionaryString(String s) {
+		if (s == null) {
+			return;
+		}
+		dictionaryReferences++;
+		long size = stringBytes(s);
+		unsharedStringBytes += size;
+		if (distinctStrings.add(s)) {
+			sharedStringBytes += size;
+		}
+	}
+
+	/**
+	 * @return estimated bytes of p, not counting the shared type and source strings
+	 */
+	static long placeBytes(Place p) {
+		// id, locatedInId, level, countryId, 2 doubles, 5 references
+		long size = align(OBJECT_HEADER + 4 * 4 + 2 * 8 + 5 * REFERENCE);
+		size += stringBytes(p.getName());
+		size += arrayBytes(p.getAltNames().length);
+		size += arrayBytes(p.getTypes().length);
+		size += align(ARRAY_HEADER + 4L * p.getAlsoLocatedInIds().length);
+		size += arrayBytes(p.getSources().length);
+		for (Place.AltName altName : p.getAltNames()) {
+			size += align(OBJECT_HEADER + 2 * REFERENCE) + stringBytes(altName.altName);
+		}
+		for (Place.Source source : p.getSources()) {
+			size += align(OBJECT_HEADER + 2 * REFERENCE) + stringBytes(source.id);
+		}
+		return size;
+	}
+
+	public void add(Place p) {
+		places++;
+		placeBytes += placeBytes(p);
+		for (String type : p.getTypes()) {
+			addDictionaryString(type);
+		}
+		for (Place.AltName altName : p.getAltNames()) {
+			altNames++;
+			addDictionaryString(altName.source);
+		}
+		for (Place.Source source : p.getSources()) {
+			sources++;
+			addDictionaryString(source.source);
+		}
+	}
+
+	public long getPlaces() {
+		return places;
+	}
+
+	public long getDictionaryReferences() {
+		return dictionaryReferences;
+	}
+
+	public int getDistinctStrings() {
+		return distinctStrings.size();
+	}
+
+	/**
+	 * @return estimated bytes of the places including the shared interned strings
+	 */
+	public long getTotalBytes() {
+		return placeBytes + sharedStringBytes;
+	}
+
+	/**
+	 * @return estimated bytes saved by sharing types and sources instead of giving every place its own copies
+	 */
+	public long getSavedBytes() {
+		return unsharedStringBytes - sharedStringBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("places=%d altNames=%d sources=%d dictionaryRefs=%d distinctStrings=%d tableSize=%d " +
+						"estimatedBytes=%,d savedBytes=%,d",
+				places, altNames, sources, dictionaryReferences, distinctStrings.size(), StringTable.getInstance().size(),
+				getTotalBytes(), getSavedBytes());
+	}
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.sql.DataSource;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Place and word store reading the places and place_words tables through caches
+ */
+public class JdbcStore implements PlaceStore, WordStore {
+	public static final int PREFETCH_BATCH_SIZE = 500;
+	// most seqs below a new row that are waited for; enough for the transactions of many concurrent writers
+	private static final int MAX_CHANGE_LOG_GAPS = 1000;
+	// Guava splits maximumWeight evenly between segments, and evicts an entry heavier than one segment's share at once;
+	// few segments keep room for the long posting lists of common words
+	public static final int CACHE_CONCURRENCY = 4;
+	private static final int SNAPSHOT_MAGIC = 0x504c4353; // PLCS
+
+	private static Logger logger = Logger.getLogger("places.standardize");
+
+	private final DataSource dataSource;
+	private final LoadingCache<Integer, Place> placeCache;
+	private final LoadingCache<String, int[]> wordCache;
+	// place_words column with the ids compressed by PostingList, or null to parse the ids text column
+	private final String packedColumn;
+	// table of changed place ids and words, or null to rely on cache expiry alone
+	private final String changeLogTable;
+	private final long changeLogPollSeconds;
+	private final long changeLogGapSeconds;
+	private long lastChangeSeq = -1;
+	// seqs below lastChangeSeq not seen yet, with when they were first missed: a concurrent writer may still commit them
+	private final TreeMap<Long, Long> changeLogGaps = new TreeMap<>();
+	private volatile Consumer<String> changedWordListener = null;
+	private volatile Runnable changeListener = null;
+
+	private class PlaceLoader extends CacheLoader<Integer, Place> {
+		@Override
+		public Place load(Integer id) {
+			Connection conn = null;
+			PreparedStatement ps = null;
+			ResultSet rs = null;
+			Place p = null;
+			StoreLookupEvent event = StoreLookupEvent.start();
+			try {
+				conn = dataSource.getConnection();
+				ps = conn.prepareStatement("SELECT * FROM places WHERE id = ?");
+				ps.setInt(1, id);
+				rs = ps.executeQuery();
+				if (rs.next()) {
+					p = constructPlace(rs);
+				}
+			}
+			catch (SQLException e) {
+				logger.severe("Error reading places: " + e);
+			}
+			finally {
+				close(rs, ps, conn);
+			}
+			event.finish(getName(), "places query", 1, p == null ? 0 : 1);
+			return p;
+		}
+
+		// places that aren't in the table are left out; callers of getAll must expect that
+		@Override
+		public Map<Integer, Place> loadAll(Iterable<? extends Integer> ids) {
+			Map<Integer, Place> result = new HashMap<>();
+			List<Integer> idList = new ArrayList<>();
+			ids.forEach(idList::add);
+			Connection conn = null;
+			PreparedStatement ps = null;
+			ResultSet rs = null;
+			StoreLookupEvent event = StoreLookupEvent.start();
+			try {
+				conn = dataSource.getConnection();
+				ps = conn.prepareStatement("SELECT * FROM places WHERE id IN (" +
+						StringUtils.repeat("?", ",", idList.size()) + ")");
+				for (int i = 0; i < idList.size(); i++) {
+					ps.setInt(i + 1, idList.get(i));
+				}
+				rs = ps.executeQuery();
+				while (rs.next()) {
+					Place p = constructPlace(rs);
+					result.put(p.getId(), p);
+				}
+			}
+			catch (SQLException e) {
+				logger.severe("Error reading places: " + e);
+			}
+			finally {
+				close(rs, ps, conn);
+			}
+			event.finish(getName(), "places query", idList.size(), result.size());
+			return result;
+		}
+	}
+
+	// a failed query throws, so that nothing is cached for its words; only words the query didn't find are cached as empty
+	private class WordLoader extends CacheLoader<String, int[]> {
+		@Override
+		public int[] load(String word) throws SQLException {
+			Connection conn = null;
+			PreparedStatement ps = null;
+			ResultSet rs = null;
+			int[] ids;
+			StoreLookupEvent event = StoreLookupEvent.start();
+			try {
+				conn = dataSource.getConnection();
+				ps = conn.prepareStatement("SELECT " + idsColumn() + " FROM place_words WHERE word = ?");
+				ps.setString(1, word);
+				rs = ps.executeQuery();
+				ids = rs.next() ? readIds(rs) : new int[0];
+			}
+			finally {
+				close(rs, ps, conn);
+			}
+			event.finish(getName(), "words query", 1, ids.length > 0 ? 1 : 0);
+			return ids;
+		}
+
+		// one round trip for all words; words that aren't in place_words map to an empty array
+		@Override
+		public Map<String, int[]> loadAll(Iterable<? extends String> words) throws SQLException {
+			Map<String, int[]> result = new HashMap<>();
+			List<String> wordList = new ArrayList<>();
+			for (String word : words) {
+				wordList.add(word);
+			}
+			Connection conn = null;
+			PreparedStatement ps = null;
+			ResultSet rs = null;
+			int found = 0;
+			StoreLookupEvent event = StoreLookupEvent.start();
+			try {
+				conn = dataSource.getConnection();
+				ps = conn.prepareStatement("SELECT word, " + idsColumn() + " FROM place_words WHERE word IN (" +
+						StringUtils.repeat("?", ",", wordList.size()) + ")");
+				for (int i = 0; i < wordList.size(); i++) {
+					ps.setString(i + 1, wordList.get(i));
+				}
+				rs = ps.executeQuery();
+				while (rs.next()) {
+					result.put(rs.getString("word"), readIds(rs));
+					found++;
+				}
+			}
+			finally {
+				close(rs, ps, conn);
+			}
+			for (String word : wordList) {
+				result.putIfAbsent(word, new int[0]);
+			}
+			event.finish(getName(), "words query", wordList.size(), found);
+			return result;
+		}
+	}
+
+	/**
+	 * Caches are sized and expired according to config; see the placeCache* and wordCache* keys in standardizer.properties
+	 */
+	public JdbcStore(DataSource dataSource, Properties config) {
+		this.dataSource = dataSource;
+		String column = System.getProperty("wordIdsPackedColumn", config.getProperty("wordIdsPackedColumn", "")).trim();
+		packedColumn = column.isEmpty() ? null : column;
+		String table = System.getProperty("changeLogTable", config.getProperty("changeLogTable", "")).trim();
+		changeLogTable = table.isEmpty() ? null : table;
+		changeLogPollSeconds = Long.parseLong(System.getProperty("changeLogPollSeconds", config.getProperty("changeLogPollSeconds", "10")).trim());
+		changeLogGapSeconds = Long.parseLong(System.getProperty("changeLogGapSeconds", config.getProperty("changeLogGapSeconds", "600")).trim());
+		placeCache = newCacheBuilder(config, "placeCache")
+				.weigher((Integer id, Place p) -> (int) Math.min(Integer.MAX_VALUE, 16 + IndexFootprint.placeBytes(p)))
+				.build(new PlaceLoader());
+		wordCache = newCacheBuilder(config, "wordCache")
+				.weigher((String word, int[] ids) -> (int) IndexFootprint.stringBytes(word) + 16 + 4 * ids.length)
+				.build(new WordLoader());
+	}
+
+	// the packed ids, and the ids text only for rows that haven't been packed
+	private String idsColumn() {
+		return packedColumn == null ? "ids" : packedColumn + ", CASE WHEN " + packedColumn + " IS NULL THEN ids END";
+	}
+
+	// ids in the last column of the row, or with a packed column the last two
+	private int[] readIds(ResultSet rs) throws SQLException {
+		int column = rs.getMetaData().getColumnCount();
+		if (packedColumn == null) {
+			return Standardizer.constructPlaceWords(rs.getString(column));
+		}
+		byte[] packed = rs.getBytes(column - 1);
+		if (packed != null) {
+			return PostingList.decode(packed);
+		}
+		// a word added since PackWordIds last ran, or whose ids were changed and its packed ids cleared
+		String ids = rs.getString(column);
+		return ids == null || ids.isEmpty() ? new int[0] : Standardizer.constructPlaceWords(ids);
+	}
+
+	/**
+	 * Fill the packed column of place_words rows from their ids text column.
+	 * Run once after the table is loaded (and after the column is added, e.g. as a VARBINARY or BLOB) before setting wordIdsPackedColumn;
+	 * PackWordIds runs it from the command line.
+	 * The ids column stays the source of truth: whoever changes a row's ids must, in the same statement, set its packed column
+	 * to NULL (or to the new packed ids), and log the word in the change log. A row without packed ids is read from its ids,
+	 * so the cache reloads it correctly when the change log evicts it; running this again with onlyMissing packs those rows.
+	 * @param onlyMissing pack only the rows whose packed column is NULL
+	 * @return number of rows written
+	 */
+	public static int packWordIds(DataSource dataSource, String packedColumn, boolean onlyMissing) throws SQLException {
+		int rows = 0;
+		try (Connection read = dataSource.getConnection(); Connection write = dataSource.getConnection()) {
+			try (Statement s = read.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			     PreparedStatement ps = write.prepareStatement("UPDATE place_words SET " + packedColumn + " = ? WHERE word = ?")) {
+				s.setFetchSize(Standardizer.SNAPSHOT_FETCH_SIZE);
+				try (ResultSet rs = s.executeQuery("SELECT word, ids FROM place_words" +
+						(onlyMissing ? " WHERE " + packedColumn + " IS NULL" : ""))) {
+					while (rs.next()) {
+						int[] ids = Arrays.stream(Standardizer.constructPlaceWords(rs.getString(2))).sorted().distinct().toArray();
+						ps.setBytes(1, PostingList.encode(ids));
+						ps.setString(2, rs.getString(1));
+						ps.addBatch();
+						if (++rows % PREFETCH_BATCH_SIZE == 0) {
+							ps.executeBatch();
+						}
+					}
+				}
+				ps.executeBatch();
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Visit every place in the table with only its id and located-in links filled in, in one pass
+	 * and without loading the places into the cache
+	 */
+	public void forEachPlaceLinks(Consumer<Place> consumer) throws SQLException {
+		try (Connection conn = dataSource.getConnection();
+		     Statement s = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			s.setFetchSize(Standardizer.SNAPSHOT_FETCH_SIZE);
+			try (ResultSet rs = s.executeQuery("SELECT id, located_in_id, also_located_in_ids FROM places")) {
+				while (rs.next()) {
+					String alsoLocatedInIds = rs.getString(3);
+					consumer.accept(Standardizer.constructPlace(rs.getInt(1), "", "", "", rs.getInt(2),
+							alsoLocatedInIds == null ? "" : alsoLocatedInIds, 0, 0, 0, 0, ""));
+				}
+			}
+		}
+	}
+
+	// weights are estimated bytes; an expiry of 0 or less means entries never expire
+	private static CacheBuilder<Object, Object> newCacheBuilder(Properties config, String prefix) {
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+				.concurrencyLevel(CACHE_CONCURRENCY)
+				.maximumWeight(getLong(config, prefix + "MaxBytes"))
+				.recordStats();
+		long expireSeconds = getLong(config, prefix + "ExpireSeconds");
+		if (expireSeconds > 0) {
+			builder.expireAfterWrite(expireSeconds, TimeUnit.SECONDS);
+		}
+		return builder;
+	}
+
+	// system properties override the properties file, so sizes can be changed without a rebuild
+	static long getLong(Properties config, String key) {
+		String value = System.getProperty(key, config.getProperty(key));
+		if (value == null) {
+			throw new IllegalArgumentException("Missing cache setting: " + key);
+		}
+		return Long.parseLong(value.trim());
+	}
+
+	public CacheStats getPlaceCacheStats() {
+		return placeCache.stats();
+	}
+
+	public CacheStats getWordCacheStats() {
+		return wordCache.stats();
+	}
+
+	/**
+	 * @return entry count and hit/miss/eviction statistics of both caches
+	 */
+	public String getCacheReport() {
+		return "places: size=" + placeCache.size() + " " + placeCache.stats() +
+				"; words: size=" + wordCache.size() + " " + wordCache.stats();
+	}
+
+	static Place constructPlace(ResultSet rs) throws SQLException {
+		return Standardizer.constructPlace(rs.getInt("id"), rs.getString("name"), rs.getString("alt_names"),
+				rs.getString("types"), rs.getInt("located_in_id"), rs.getString("also_located_in_ids"),
+				rs.getInt("level"), rs.getInt("country_id"), rs.getDouble("latitude"), rs.getDouble("longitude"),
+				rs.getString("sources"));
+	}
+
+	static void close(ResultSet rs, PreparedStatement ps, Connection conn) {
+		try {
+			if (rs != null) {
+				rs.close();
+			}
+			if (ps != null) {
+				ps.close();
+			}
+			if (conn != null) {
+				conn.close();
+			}
+		}
+		catch (Exception e) {
+			// ignore
+		}
+	}
+
+	public boolean hasChangeLog() {
+		return changeLogTable != null;
+	}
+
+	/**
+	 * Poll the change log every changeLogPollSeconds from now on.
+	 * @param afterSeq the changes after this one are read by a first poll before returning, e.g. to bring a word filter
+	 * saved with that seq up to date; -1 to start after the newest change already in the log
+	 * @param changedWords called with every word the log names, e.g. to add new words to a word filter
+	 * @param changed called after every poll that read changes, e.g. to clear caches of results built from the stores
+	 */
+	public void scheduleChangePolling(long afterSeq, Consumer<String> changedWords, Runnable changed) throws SQLException {
+		changedWordListener = changedWords;
+		changeListener = changed;
+		synchronized (this) {
+			lastChangeSeq = afterSeq >= 0 ? afterSeq : readLastChangeSeq();
+		}
+		pollChanges();
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "change-log-poll");
+			t.setDaemon(true);
+			return t;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				pollChanges();
+			}
+			catch (SQLException e) {
+				logger.warning("Error polling " + changeLogTable + ": " + e);
+			}
+		}, changeLogPollSeconds, changeLogPollSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return seq of the newest change in the log, 0 if it is empty
+	 */
+	public long readLastChangeSeq() throws SQLException {
+		try (Connection conn = dataSource.getConnection();
+		     Statement s = conn.createStatement();
+		     ResultSet rs = s.executeQuery("SELECT MAX(seq) FROM " + changeLogTable)) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 * @return seq up to which every change has been read by pollChanges (or given up on after changeLogGapSeconds);
+	 * polling again from it, e.g. after a restart, misses nothing pollChanges may still read
+	 */
+	public synchronized long getLastChangeSeq() {
+		return changeLogGaps.isEmpty() ? lastChangeSeq : Math.min(lastChangeSeq, changeLogGaps.firstKey() - 1);
+	}
+
+	/**
+	 * Evict the places and words named by change log rows written since the last poll.
+	 * Each row has an increasing seq and the place_id and/or word that was inserted, updated or deleted;
+	 * whoever edits places or place_words adds the rows in the same transaction, including the words of a renamed place.
+	 * With concurrent writers (e.g. MySQL auto-increment) a row can become visible after rows with a higher seq,
+	 * so seqs skipped over are polled again for changeLogGapSeconds; after that they are taken to be rolled back.
+	 * @return number of change rows read
+	 */
+	public synchronized int pollChanges() throws SQLException {
+		if (lastChangeSeq < 0) {
+			lastChangeSeq = readLastChangeSeq();
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		changeLogGaps.values().removeIf(missedAt -> now - missedAt > changeLogGapSeconds * 1000);
+		long fromSeq = changeLogGaps.isEmpty() ? lastChangeSeq : Math.min(lastChangeSeq, changeLogGaps.firstKey() - 1);
+		Consumer<String> listener = changedWordListener;
+		int rows = 0;
+		try (Connection conn = dataSource.getConnection();
+		     PreparedStatement ps = conn.prepareStatement("SELECT seq, place_id, word FROM " + changeLogTable +
+				     " WHERE seq > ? ORDER BY seq")) {
+			ps.setLong(1, fromSeq);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					long seq = rs.getLong(1);
+					if (seq <= lastChangeSeq) {
+						// read before, unless it is one of the gaps that has now been committed
+						if (changeLogGaps.remove(seq) == null) {
+							continue;
+						}
+					} else {
+						for (long gap = Math.max(lastChangeSeq + 1, seq - MAX_CHANGE_LOG_GAPS); gap < seq; gap++) {
+							changeLogGaps.put(gap, now);
+						}
+						lastChangeSeq = seq;
+					}
+					rows++;
+					int id = rs.getInt(2);
+					if (id > 0) {
+						placeCache.invalidate(id);
+					}
+					String word = rs.getString(3);
+					if (word != null) {
+						wordCache.invalidate(word);
+						if (listener != null) {
+							listener.accept(word);
+						}
+					}
+				}
+			}
+		}
+		Runnable changed = changeListener;
+		if (rows > 0 && changed != null) {
+			changed.run();
+		}
+		return rows;
+	}
+
+	/**
+	 * Write the keys of both caches to file, so a later process can prefetch them with warmUp
+	 */
+	public void saveCacheKeys(File file) throws IOException {
+		// a temp file of its own, so processes sharing the snapshot file don't write into each other's
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+				List<Integer> ids = new ArrayList<>(placeCache.asMap().keySet());
+				List<String> words = new ArrayList<>(wordCache.asMap().keySet());
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(ids.size());
+				for (int id : ids) {
+					out.writeInt(id);
+				}
+				out.writeInt(words.size());
+				for (String word : words) {
+					out.writeUTF(word);
+				}
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Bulk-load the places and words whose keys were saved by saveCacheKeys, PREFETCH_BATCH_SIZE keys per query
+	 * @return number of keys prefetched
+	 */
+	public int warmUp(File file) throws IOException {
+		List<Integer> ids = new ArrayList<>();
+		List<String> words = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Not a cache key file: " + file);
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				ids.add(in.readInt());
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				words.add(in.readUTF());
+			}
+		}
+		for (int i = 0; i < words.size(); i += PREFETCH_BATCH_SIZE) {
+			lookupAll(words.subList(i, Math.min(words.size(), i + PREFETCH_BATCH_SIZE)));
+		}
+		for (int i = 0; i < ids.size(); i += PREFETCH_BATCH_SIZE) {
+			getPlaces(ids.subList(i, Math.min(ids.size(), i + PREFETCH_BATCH_SIZE)));
+		}
+		return ids.size() + words.size();
+	}
+
+	/**
+	 * Save the cache keys to file every periodSeconds and when the JVM shuts down
+	 */
+	public void scheduleCacheKeySnapshots(File file, long periodSeconds) {
+		Runnable save = () -> {
+			try {
+				saveCacheKeys(file);
+			}
+			catch (IOException e) {
+				logger.warning("Error saving cache keys: " + e);
+			}
+		};
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "cache-key-snapshot");
+			t.setDaemon(true);
+			return t;
+		});
+		executor.scheduleWithFixedDelay(save, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(save));
+	}
+
+	@Override
+	public Map<Integer, Place> getPlaces(Collection<Integer> ids) {
+		try {
+			return new HashMap<>(placeCache.getAll(ids));
+		}
+		catch (ExecutionException e) {
+			logger.severe("Error loading places: " + e);
+		}
+		catch (CacheLoader.InvalidCacheLoadException e) {
+			// some ids aren't in the table; the ones that are have been cached
+			return new HashMap<>(placeCache.getAllPresent(ids));
+		}
+		return new HashMap<>();
+	}
+
+	@Override
+	public Place getPlace(int id) {
+		try {
+			return placeCache.get(id);
+		}
+		catch (ExecutionException e) {
+			logger.severe("Error loading place: " + e);
+		}
+		catch (CacheLoader.InvalidCacheLoadException e) {
+			// the loader returns null for places that aren't in the table
+		}
+		return null;
+	}
+
+	@Override
+	public void forEachPlace(Consumer<Place> consumer) {
+		placeCache.asMap().values().forEach(consumer);
+	}
+
+	@Override
+	public int[] lookup(String word) {
+		try {
+			return wordCache.get(word);
+		}
+		catch (ExecutionException | UncheckedExecutionException e) {
+			// not cached, so the word is looked up again on the next call
+			logger.severe("Error loading place words: " + e);
+			return null;
+		}
+	}
+
+	@Override
+	public Map<String, int[]> lookupAll(Collection<String> words) {
+		Map<String, int[]> result = new HashMap<>();
+		try {
+			for (Map.Entry<String, int[]> entry : wordCache.getAll(words).entrySet()) {
+				if (entry.getValue().length > 0) {
+					result.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		catch (ExecutionException | UncheckedExecutionException e) {
+			logger.severe("Error loading place words: " + e);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean isRemote() {
+		return true;
+	}
+
+	@Override
+	public String getName() {
+		return "jdbc";
+	}
+}
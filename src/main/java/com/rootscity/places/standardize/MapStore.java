@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Place and word store over plain maps: the MapDB indexes in places.db, or HashMaps filled by readPlaceIndex/readWordIndex.
+ * MapDB deserializes the place on every get, so the field accessors reuse the place the thread read last:
+ * the matcher reads several fields of one place in a row. The maps must not change while places are being read.
+ */
+public class MapStore implements PlaceStore, WordStore {
+	private final Map<Integer, Place> placeIndex;
+	private final Map<String, int[]> wordIndex;
+	private final String name;
+	private final ThreadLocal<Place> lastPlace = new ThreadLocal<>();
+
+	public MapStore(Map<Integer, Place> placeIndex, Map<String, int[]> wordIndex, String name) {
+		this.placeIndex = placeIndex;
+		this.wordIndex = wordIndex;
+		this.name = name;
+	}
+
+	@Override
+	public Place getPlace(int id) {
+		return placeIndex.get(id);
+	}
+
+	private Place getLastPlace(int id) {
+		Place p = lastPlace.get();
+		if (p == null || p.getId() != id) {
+			p = placeIndex.get(id);
+			if (p != null) {
+				lastPlace.set(p);
+			}
+		}
+		return p;
+	}
+
+	@Override
+	public int getLevel(int id) {
+		Place p = getLastPlace(id);
+		return p == null ? 0 : p.getLevel();
+	}
+
+	@Override
+	public int getCountryId(int id) {
+		Place p = getLastPlace(id);
+		return p == null ? 0 : p.getCountryId();
+	}
+
+	@Override
+	public int getLocatedInId(int id) {
+		Place p = getLastPlace(id);
+		return p == null ? 0 : p.getLocatedInId();
+	}
+
+	@Override
+	public int[] getAlsoLocatedInIds(int id) {
+		Place p = getLastPlace(id);
+		return p == null ? new int[0] : p.getAlsoLocatedInIds();
+	}
+
+	@Override
+	public String getPlaceName(int id) {
+		Place p = getLastPlace(id);
+		return p == null ? "" : p.getName();
+	}
+
+	@Override
+	public String[] getTypes(int id) {
+		Place p = getLastPlace(id);
+		return p == null ? new String[0] : p.getTypes();
+	}
+
+	@Override
+	public void forEachPlace(Consumer<Place> consumer) {
+		placeIndex.values().forEach(consumer);
+	}
+
+	@Override
+	public int[] lookup(String word) {
+		return wordIndex.get(word);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+}
@@ -43,11 +43,15 @@ public class Place implements Serializable, Comparable {
       public String source;
       public AltName(String altName, String source) {
          this.altName = altName;
-         this.source = source;
+         this.source = StringTable.getInstance().intern(source);
       }
       public AltName() {
          this(null, null);
       }
+      private Object readResolve() {
+         source = StringTable.getInstance().intern(source);
+         return this;
+      }
    }
 
    public static class Source implements Serializable {
@@ -55,12 +59,16 @@ public class Place implements Serializable, Comparable {
       public String source;
       public String id;
       public Source(String source, String id) {
-         this.source = source;
+         this.source = StringTable.getInstance().intern(source);
          this.id = id;
       }
       public Source() {
          this(null, null);
       }
+      private Object readResolve() {
+         source = StringTable.getInstance().intern(source);
+         return this;
+      }
    }
 
 	private int id = 0;
@@ -108,7 +116,7 @@ public class Place implements Serializable, Comparable {
    }
 
    public void setTypes(String[] types) {
-      this.types = types == null ? new String[0] : types;
+      this.types = types == null ? new String[0] : StringTable.getInstance().intern(types);
    }
 
    public int getLocatedInId() {
@@ -167,6 +175,12 @@ public class Place implements Serializable, Comparable {
       this.sources = sources == null ? new Source[0] : sources;
    }
 
+   // share type strings with every other place that was deserialized from the index
+   private Object readResolve() {
+      StringTable.getInstance().intern(types);
+      return this;
+   }
+
    @XmlElement
    public String getFullName() {
       StringJoiner buf = new StringJoiner(", ");
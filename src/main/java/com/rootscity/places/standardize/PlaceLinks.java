@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.rootscity.places.standardize;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Located-in and also-located-in links of every place, indexed by place id.
+ * Collected in one pass over the places, then used to build both the Hierarchy and the ChildIndex.
+ */
+class PlaceLinks {
+	private int[] parents = new int[1024];
+	private int[][] alsoParents = new int[1024][];
+	private final BitSet present = new BitSet();
+
+	/**
+	 * Record the links of p; only its id, located-in id and also-located-in ids are read
+	 */
+	void add(Place p) {
+		int id = p.getId();
+		if (id >= parents.length) {
+			int size = Math.max(id + 1, parents.length * 3 / 2);
+			parents = Arrays.copyOf(parents, size);
+			alsoParents = Arrays.copyOf(alsoParents, size);
+		}
+		parents[id] = p.getLocatedInId();
+		alsoParents[id] = p.getAlsoLocatedInIds();
+		present.set(id);
+	}
+
+	/**
+	 * @return one more than the highest place id
+	 */
+	int size() {
+		return present.length();
+	}
+
+	BitSet getPresent() {
+		return present;
+	}
+
+	/**
+	 * @return located-in ids indexed by place id; 0 for no parent
+	 */
+	int[] getParents() {
+		return parents;
+	}
+
+	int[] getAlsoParents(int id) {
+		return alsoParents[id];
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Where the standardizer gets its places from.
+ * Implementations must be safe for concurrent reads.
+ */
+public interface PlaceStore {
+	/**
+	 * @return the place, or null if there is no place with this id
+	 */
+	Place getPlace(int id);
+
+	/**
+	 * @return the places that were found, keyed by id
+	 */
+	default Map<Integer, Place> getPlaces(Collection<Integer> ids) {
+		Map<Integer, Place> result = new HashMap<>();
+		for (int id : ids) {
+			Place p = getPlace(id);
+			if (p != null) {
+				result.put(id, p);
+			}
+		}
+		return result;
+	}
+
+	// Accessors for the fields the matcher reads. Stores that can read them without building a Place override them.
+	// Missing places read as level 0, no parents, empty name and no types.
+
+	default int getLevel(int id) {
+		Place p = getPlace(id);
+		return p == null ? 0 : p.getLevel();
+	}
+
+	default int getCountryId(int id) {
+		Place p = getPlace(id);
+		return p == null ? 0 : p.getCountryId();
+	}
+
+	default int getLocatedInId(int id) {
+		Place p = getPlace(id);
+		return p == null ? 0 : p.getLocatedInId();
+	}
+
+	default int[] getAlsoLocatedInIds(int id) {
+		Place p = getPlace(id);
+		return p == null ? new int[0] : p.getAlsoLocatedInIds();
+	}
+
+	default String getPlaceName(int id) {
+		Place p = getPlace(id);
+		return p == null ? "" : p.getName();
+	}
+
+	/**
+	 * @return name of the place as produced by placeNormalizer.normalize
+	 */
+	default String getNormalizedName(int id) {
+		return placeNormalizer.getInstance().normalize(getPlaceName(id));
+	}
+
+	default String[] getTypes(int id) {
+		Place p = getPlace(id);
+		return p == null ? new String[0] : p.getTypes();
+	}
+
+	/**
+	 * @return true if the normalized name of the place contains token; stores holding the normalized name
+	 * override this to compare it where it is stored
+	 */
+	default boolean normalizedNameContains(int id, String token) {
+		return getNormalizedName(id).indexOf(token) >= 0;
+	}
+
+	/**
+	 * @return true if one of the types of the place, normalized, contains token
+	 */
+	default boolean normalizedTypeContains(int id, String token) {
+		for (String type : getTypes(id)) {
+			if (placeNormalizer.getInstance().normalize(type).indexOf(token) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if reads may each be a round trip to another process, so callers should batch them with getPlaces
+	 */
+	default boolean isRemote() {
+		return false;
+	}
+
+	/**
+	 * Visit every place held by the store (for a caching store, every cached place)
+	 */
+	void forEachPlace(Consumer<Place> consumer);
+
+	/**
+	 * Visit the id of every place forEachPlace would visit; stores that can list ids without building places override this
+	 */
+	default void forEachId(IntConsumer consumer) {
+		forEachPlace(p -> consumer.accept(p.getId()));
+	}
+
+	/**
+	 * @return short name of the backend, for logging and metrics
+	 */
+	String getName();
+}
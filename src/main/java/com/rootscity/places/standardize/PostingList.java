@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compressed posting lists: a strictly increasing sequence of ints stored as its length, its first value,
+ * and the gaps between consecutive values minus one, each as an unsigned varint (7 bits per byte, high bit = more).
+ * Lists of nearby values (DFS ranks of places in one region, or ids of places added together) take one or two bytes per entry.
+ * intersect walks a list with a cursor, skipping the values it doesn't need without turning them into an array.
+ */
+public final class PostingList {
+	private static final byte[] EMPTY = encode(new int[0]);
+
+	private PostingList() {
+	}
+
+	/**
+	 * @param values strictly increasing, non-negative
+	 */
+	public static byte[] encode(int[] values) {
+		byte[] buf = new byte[5 * (values.length + 1)];
+		int pos = putVarint(buf, 0, values.length);
+		int previous = -1;
+		for (int value : values) {
+			if (value <= previous) {
+				throw new IllegalArgumentException("Posting list values must be strictly increasing");
+			}
+			pos = putVarint(buf, pos, value - previous - 1);
+			previous = value;
+		}
+		return Arrays.copyOf(buf, pos);
+	}
+
+	public static byte[] empty() {
+		return EMPTY;
+	}
+
+	public static int[] decode(byte[] list) {
+		Cursor cursor = new Cursor(list);
+		int[] values = new int[cursor.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = cursor.next();
+		}
+		return values;
+	}
+
+	public static int size(byte[] list) {
+		return new Cursor(list).size();
+	}
+
+	/**
+	 * @return the values of list that are in one of the intervals [starts[i], ends[i]) or set in extra, in ascending order
+	 * @param starts ascending, with the intervals disjoint
+	 */
+	public static int[] intersect(byte[] list, int[] starts, int[] ends, BitSet extra) {
+		Cursor cursor = new Cursor(list);
+		int[] result = new int[cursor.size()];
+		int count = 0;
+		int interval = 0;
+		int value = cursor.hasNext() ? cursor.next() : -1;
+		while (value >= 0) {
+			while (interval < starts.length && ends[interval] <= value) {
+				interval++;
+			}
+			if ((interval < starts.length && starts[interval] <= value) || extra.get(value)) {
+				result[count++] = value;
+				value = cursor.hasNext() ? cursor.next() : -1;
+				continue;
+			}
+			// value is in a gap: skip to the next interval or extra value, whichever comes first
+			int target = interval < starts.length ? starts[interval] : Integer.MAX_VALUE;
+			int next = extra.nextSetBit(value);
+			if (next >= 0 && next < target) {
+				target = next;
+			}
+			value = target == Integer.MAX_VALUE ? -1 : cursor.advanceTo(target);
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	private static int putVarint(byte[] buf, int pos, int value) {
+		while ((value & ~0x7f) != 0) {
+			buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * Forward-only reader over an encoded list
+	 */
+	private static final class Cursor {
+		private final byte[] list;
+		private final int size;
+		private int pos;
+		private int read = 0;
+		private int value = -1;
+
+		Cursor(byte[] list) {
+			this.list = list;
+			this.pos = 0;
+			this.size = readVarint();
+		}
+
+		private int readVarint() {
+			int result = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = list[pos++];
+				result |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return result;
+		}
+
+		int size() {
+			return size;
+		}
+
+		boolean hasNext() {
+			return read < size;
+		}
+
+		int next() {
+			value += readVarint() + 1;
+			read++;
+			return value;
+		}
+
+		/**
+		 * Skip to the first value >= target
+		 * @return that value, or -1 if the list has none
+		 */
+		int advanceTo(int target) {
+			if (read > 0 && value >= target) {
+				return value;
+			}
+			while (read < size) {
+				if (next() >= target) {
+					return value;
+				}
+			}
+			return -1;
+		}
+	}
+}
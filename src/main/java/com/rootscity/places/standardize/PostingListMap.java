@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.util.*;
+
+/**
+ * Read-only view of the compressed posting lists in places.db as word -> place ids.
+ * With a hierarchy the stored values are DFS ranks, decoded to ids in rank order; without one they are the ids themselves.
+ */
+class PostingListMap extends AbstractMap<String, int[]> {
+	private final Map<String, byte[]> postings;
+	private final Hierarchy hierarchy;
+
+	PostingListMap(Map<String, byte[]> postings, Hierarchy hierarchy) {
+		this.postings = postings;
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Encode a posting list for storage next to hierarchy (or without one if it is null)
+	 */
+	static byte[] encode(int[] ids, Hierarchy hierarchy) {
+		if (hierarchy != null) {
+			return PostingList.encode(hierarchy.toRanks(ids));
+		}
+		int[] sorted = Arrays.stream(ids).sorted().distinct().toArray();
+		return PostingList.encode(sorted);
+	}
+
+	private int[] decode(byte[] list) {
+		int[] values = PostingList.decode(list);
+		if (hierarchy != null) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = hierarchy.getId(values[i]);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return the place ids of word as a list that is decoded when first read, or null if the word isn't indexed
+	 */
+	Ids getIds(String word) {
+		byte[] list = postings.get(word);
+		return list == null ? null : new Ids(list);
+	}
+
+	/**
+	 * Place ids of one word, still encoded until an element is read: size comes from the list header,
+	 * and filterRanks can keep only the places under a set of parents without decoding the others
+	 */
+	final class Ids extends AbstractList<Integer> implements RandomAccess {
+		private final byte[] list;
+		private final int size;
+		// the list may be handed to an error handler on another thread
+		private volatile int[] ids = null;
+
+		private Ids(byte[] list) {
+			this.list = list;
+			this.size = PostingList.size(list);
+		}
+
+		Hierarchy getHierarchy() {
+			return hierarchy;
+		}
+
+		/**
+		 * @see Hierarchy#filterRanks
+		 */
+		int[] filterRanks(Hierarchy.Intervals intervals) {
+			return hierarchy.filterRanks(list, intervals);
+		}
+
+		@Override
+		public Integer get(int index) {
+			int[] decoded = ids;
+			if (decoded == null) {
+				decoded = decode(list);
+				ids = decoded;
+			}
+			return decoded[index];
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	@Override
+	public int[] get(Object word) {
+		byte[] list = postings.get(word);
+		return list == null ? null : decode(list);
+	}
+
+	@Override
+	public boolean containsKey(Object word) {
+		return postings.containsKey(word);
+	}
+
+	@Override
+	public int size() {
+		return postings.size();
+	}
+
+	@Override
+	public Set<Entry<String, int[]>> entrySet() {
+		return new AbstractSet<Entry<String, int[]>>() {
+			@Override
+			public Iterator<Entry<String, int[]>> iterator() {
+				Iterator<Entry<String, byte[]>> it = postings.entrySet().iterator();
+				return new Iterator<Entry<String, int[]>>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Entry<String, int[]> next() {
+						Entry<String, byte[]> entry = it.next();
+						return new SimpleImmutableEntry<>(entry.getKey(), decode(entry.getValue()));
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return postings.size();
+			}
+		};
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return Collections.unmodifiableSet(postings.keySet());
+	}
+}
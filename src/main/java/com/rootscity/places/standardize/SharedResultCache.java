@@ -0,0 +1,342 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Standardize results kept in a memory-mapped file shared by the standardizer processes on one host,
+ * so a new process starts with the results its neighbours have already computed.
+ * Entries are keyed by a 64-bit fingerprint of the tokenized text and the options, and hold up to maxResults place ids and scores.
+ * The table is set-associative: a key can live in any of the WAYS entries of one set, and a full set evicts by CLOCK.
+ * Readers take no locks: each set has a version that writers make odd while they change the set, and a reader
+ * that sees it change (or odd) during its copy retries, then gives up with a miss.
+ * Writers of a set hold one of STRIPES locks, each an in-process lock plus an advisory lock on one byte of the file,
+ * so only one instance per file may be open in a process.
+ *
+ * File layout (big-endian):
+ * header: magic, version, set count (a power of two), max results, generation (long), epoch
+ * sets: clock hand, version, then WAYS entries of
+ * fingerprint (long, 0 = empty), epoch, reference bit (byte), result count (byte), padding, results (place id int, score double)
+ */
+public class SharedResultCache {
+	public static final int WAYS = 8;
+	public static final int STRIPES = 64;
+	private static final int MAGIC = 0x504c4352; // PLCR
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 32;
+	private static final int EPOCH_POS = 24;
+	private static final int SET_HEADER_SIZE = 8;
+	private static final int ENTRY_HEADER_SIZE = 16;
+	private static final int RESULT_SIZE = 12;
+	// advisory locks are taken past the end of the file, so they never cover data
+	private static final long LOCK_BASE = 1L << 40;
+	private static final long INIT_LOCK = LOCK_BASE - 1;
+	private static final int READ_ATTEMPTS = 3;
+	// ordered access to the set versions in the mapped file
+	private static final VarHandle INT_VIEW = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	private static Logger logger = Logger.getLogger("places.standardize");
+
+	private final File file;
+	private final MappedByteBuffer buf;
+	private final int setMask;
+	private final int maxResults;
+	private final int entrySize;
+	private final int setSize;
+	private final long generation;
+	private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+	private volatile FileChannel channel;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong puts = new AtomicLong();
+
+	/**
+	 * Ids and scores of a cached result, best first
+	 */
+	public static class Result {
+		public final int[] ids;
+		public final double[] scores;
+
+		Result(int[] ids, double[] scores) {
+			this.ids = ids;
+			this.scores = scores;
+		}
+	}
+
+	/**
+	 * Open file, creating it with room for about entries results if it doesn't exist.
+	 * An existing file keeps its own size and maxResults; it is cleared if it was last opened for a different generation of the index.
+	 * A file of another format version is left alone, since processes of that version may still be using it.
+	 */
+	public SharedResultCache(File file, int entries, int maxResults, long generation) throws IOException {
+		if (maxResults < 1 || maxResults > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException("maxResults must be 1 to " + Byte.MAX_VALUE);
+		}
+		this.file = file;
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new ReentrantLock();
+		}
+		channel = openChannel();
+		try (FileLock init = channel.lock(INIT_LOCK, 1, false)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(header, 0);
+			if (header.position() == HEADER_SIZE && header.getInt(0) == MAGIC && header.getInt(4) != VERSION) {
+				throw new IOException("Result cache " + file + " has format version " + header.getInt(4) + ", not " + VERSION);
+			}
+			if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+				int sets = Integer.highestOneBit(Math.max(STRIPES, entries / WAYS - 1)) << 1;
+				long size = HEADER_SIZE + (long) sets * (SET_HEADER_SIZE + WAYS * (ENTRY_HEADER_SIZE + maxResults * RESULT_SIZE));
+				if (size > Integer.MAX_VALUE) {
+					throw new IOException("Result cache too large: " + entries + " entries");
+				}
+				// a fresh zero-filled file: every entry is empty
+				channel.truncate(0);
+				channel.write(ByteBuffer.allocate(1), size - 1);
+				header.clear();
+				header.putInt(0, MAGIC);
+				header.putInt(4, VERSION);
+				header.putInt(8, sets);
+				header.putInt(12, maxResults);
+				header.putLong(16, generation);
+				header.putInt(EPOCH_POS, 1);
+				channel.write(header, 0);
+			}
+			buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			// other processes may still be using the file, so a new index clears it instead of recreating it
+			if (buf.getLong(16) != generation) {
+				buf.putLong(16, generation);
+				buf.putInt(EPOCH_POS, buf.getInt(EPOCH_POS) + 1);
+			}
+		}
+		this.generation = generation;
+		setMask = buf.getInt(8) - 1;
+		this.maxResults = buf.getInt(12);
+		entrySize = ENTRY_HEADER_SIZE + this.maxResults * RESULT_SIZE;
+		setSize = SET_HEADER_SIZE + WAYS * entrySize;
+	}
+
+	private FileChannel openChannel() throws IOException {
+		return new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * @return key for the tokenized levels of a text and the options that decide its result;
+	 * processes on different generations of the index sharing the file never see each other's results
+	 */
+	public long key(List<List<String>> levelWords, String defaultCountry, Standardizer.Mode mode, int numResults) {
+		StringBuilder key = new StringBuilder();
+		for (List<String> words : levelWords) {
+			for (String word : words) {
+				key.append(word).append(' ');
+			}
+			key.append(',');
+		}
+		key.append('\u0001').append(defaultCountry).append('\u0001').append(mode).append('\u0001').append(numResults)
+				.append('\u0001').append(generation);
+		return ExactMatchIndex.fingerprint(key.toString());
+	}
+
+	public int getMaxResults() {
+		return maxResults;
+	}
+
+	/**
+	 * @return the current epoch; pass it to put so results computed before a clear are not stored after it
+	 */
+	public int getEpoch() {
+		return buf.getInt(EPOCH_POS);
+	}
+
+	/**
+	 * @return the cached result for key, or null on a miss
+	 */
+	public Result get(long key) {
+		int setPos = HEADER_SIZE + setIndex(key) * setSize;
+		int base = setPos + SET_HEADER_SIZE;
+		for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+			int version = (int) INT_VIEW.getAcquire(buf, setPos + 4);
+			if ((version & 1) != 0) {
+				continue;
+			}
+			int epoch = buf.getInt(EPOCH_POS);
+			int found = -1;
+			int[] ids = null;
+			double[] scores = null;
+			for (int way = 0; way < WAYS && found < 0; way++) {
+				int pos = base + way * entrySize;
+				if (buf.getLong(pos) == key && buf.getInt(pos + 8) == epoch) {
+					// a torn count is caught by the version check below; only keep the copy in bounds
+					int count = Math.min(Math.max(buf.get(pos + 13), 0), maxResults);
+					ids = new int[count];
+					scores = new double[count];
+					for (int i = 0; i < count; i++) {
+						int resultPos = pos + ENTRY_HEADER_SIZE + i * RESULT_SIZE;
+						ids[i] = buf.getInt(resultPos);
+						scores[i] = buf.getDouble(resultPos + 4);
+					}
+					found = way;
+				}
+			}
+			VarHandle.acquireFence();
+			if ((int) INT_VIEW.getVolatile(buf, setPos + 4) != version) {
+				continue;
+			}
+			if (found < 0) {
+				break;
+			}
+			// a lost update of the reference bit only makes the entry an earlier eviction candidate
+			buf.put(base + found * entrySize + 12, (byte) 1);
+			hits.incrementAndGet();
+			return new Result(ids, scores);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Store the result for key, unless the cache was cleared since epoch was read; results longer than maxResults aren't kept
+	 */
+	public void put(long key, int epoch, int[] ids, double[] scores) {
+		if (ids.length > maxResults) {
+			return;
+		}
+		int set = setIndex(key);
+		FileLock fileLock = lock(set);
+		if (fileLock == null) {
+			return;
+		}
+		try {
+			if (buf.getInt(EPOCH_POS) != epoch) {
+				return;
+			}
+			int setPos = HEADER_SIZE + set * setSize;
+			int base = setPos + SET_HEADER_SIZE;
+			int victim = -1;
+			for (int way = 0; way < WAYS && victim < 0; way++) {
+				int pos = base + way * entrySize;
+				long stored = buf.getLong(pos);
+				if (stored == key || stored == 0 || buf.getInt(pos + 8) != epoch) {
+					victim = way;
+				}
+			}
+			if (victim < 0) {
+				// CLOCK: skip and clear recently used entries until one hasn't been used since the hand last passed
+				int hand = buf.getInt(setPos);
+				while (buf.get(base + hand * entrySize + 12) != 0) {
+					buf.put(base + hand * entrySize + 12, (byte) 0);
+					hand = (hand + 1) % WAYS;
+				}
+				victim = hand;
+				buf.putInt(setPos, (hand + 1) % WAYS);
+			}
+			// odd while the entry is rewritten, so readers don't return a half-written result
+			int version = buf.getInt(setPos + 4);
+			INT_VIEW.setVolatile(buf, setPos + 4, version + 1);
+			VarHandle.releaseFence();
+			int pos = base + victim * entrySize;
+			buf.putLong(pos, key);
+			buf.putInt(pos + 8, epoch);
+			buf.put(pos + 12, (byte) 1);
+			buf.put(pos + 13, (byte) ids.length);
+			for (int i = 0; i < ids.length; i++) {
+				int resultPos = pos + ENTRY_HEADER_SIZE + i * RESULT_SIZE;
+				buf.putInt(resultPos, ids[i]);
+				buf.putDouble(resultPos + 4, scores[i]);
+			}
+			INT_VIEW.setRelease(buf, setPos + 4, version + 2);
+			puts.incrementAndGet();
+		}
+		finally {
+			unlock(set, fileLock);
+		}
+	}
+
+	/**
+	 * Drop every entry, in every process sharing the file, e.g. after the places they refer to have changed
+	 */
+	public void clear() {
+		try (FileLock init = channel.lock(INIT_LOCK, 1, false)) {
+			buf.putInt(EPOCH_POS, buf.getInt(EPOCH_POS) + 1);
+		}
+		catch (IOException e) {
+			logger.warning("Error clearing result cache " + file + ": " + e);
+			reopenIfClosed(e);
+		}
+	}
+
+	private int setIndex(long key) {
+		return (int) (key ^ (key >>> 32)) & setMask;
+	}
+
+	// null if the file can't be locked; the call is then treated as a miss
+	private FileLock lock(int set) {
+		int stripe = set & (STRIPES - 1);
+		locks[stripe].lock();
+		try {
+			return channel.lock(LOCK_BASE + stripe, 1, false);
+		}
+		catch (IOException e) {
+			locks[stripe].unlock();
+			reopenIfClosed(e);
+			return null;
+		}
+	}
+
+	private void unlock(int set, FileLock fileLock) {
+		try {
+			fileLock.release();
+		}
+		catch (IOException e) {
+			reopenIfClosed(e);
+		}
+		finally {
+			locks[set & (STRIPES - 1)].unlock();
+		}
+	}
+
+	// an interrupt while waiting for a file lock closes the channel; the mapping stays valid, so only the channel is reopened
+	private synchronized void reopenIfClosed(IOException e) {
+		if (e instanceof ClosedChannelException && !channel.isOpen()) {
+			try {
+				channel = openChannel();
+			}
+			catch (IOException reopen) {
+				logger.warning("Error reopening result cache " + file + ": " + reopen);
+			}
+		} else if (!(e instanceof ClosedChannelException)) {
+			logger.warning("Error locking result cache " + file + ": " + e);
+		}
+	}
+
+	public String getReport() {
+		return String.format("file=%s sets=%d ways=%d maxResults=%d hits=%d misses=%d puts=%d",
+				file, setMask + 1, WAYS, maxResults, hits.get(), misses.get(), puts.get());
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+/**
+ * Everything a single standardize call needs besides the shared, read-only Standardizer:
+ * the error handler, the request options and scratch buffers.
+ * A context may be reused for consecutive calls on one thread, but must not be shared between threads;
+ * the options it holds may be shared freely.
+ */
+public class StandardizeContext {
+	private final ErrorHandler errorHandler;
+	private StandardizeOptions options;
+
+	// scratch buffer for building name/type tokens
+	final StringBuilder tokenBuffer = new StringBuilder();
+
+	// budget of the current call
+	private long deadlineNanos;
+	private int lookupsLeft;
+	private int candidatesLeft;
+	private boolean degraded = false;
+
+	// what the current call did, for StandardizeEvent
+	int levels;
+	int lookups;
+	int candidates;
+	String resultSource;
+
+	public StandardizeContext(ErrorHandler errorHandler, StandardizeOptions options) {
+		this.errorHandler = errorHandler;
+		this.options = options;
+	}
+
+	/**
+	 * The default country is resolved on the first call that needs it and reused by later calls with this context;
+	 * use Standardizer.compileOptions to resolve it once for many contexts.
+	 */
+	public StandardizeContext(ErrorHandler errorHandler, String defaultCountry, Standardizer.Mode mode, int numResults) {
+		this(errorHandler, StandardizeOptions.unresolved(defaultCountry, mode, numResults));
+	}
+
+	public StandardizeContext(ErrorHandler errorHandler) {
+		this(errorHandler, StandardizeOptions.DEFAULT);
+	}
+
+	public StandardizeContext() {
+		this(null);
+	}
+
+	public ErrorHandler getErrorHandler() {
+		return errorHandler;
+	}
+
+	public StandardizeOptions getOptions() {
+		return options;
+	}
+
+	void setOptions(StandardizeOptions options) {
+		this.options = options;
+	}
+
+	public String getDefaultCountry() {
+		return options.getDefaultCountry();
+	}
+
+	public Standardizer.Mode getMode() {
+		return options.getMode();
+	}
+
+	public int getNumResults() {
+		return options.getNumResults();
+	}
+
+	/**
+	 * @return true if the last call ran out of its budget and returned a partial match
+	 */
+	public boolean isDegraded() {
+		return degraded;
+	}
+
+	// limits of 0 mean unlimited
+	void startBudget(long budgetMillis, int maxLookups, int maxCandidates) {
+		deadlineNanos = budgetMillis > 0 ? System.nanoTime() + budgetMillis * 1000000L : Long.MAX_VALUE;
+		lookupsLeft = maxLookups > 0 ? maxLookups : Integer.MAX_VALUE;
+		candidatesLeft = maxCandidates > 0 ? maxCandidates : Integer.MAX_VALUE;
+		degraded = false;
+		levels = 0;
+		lookups = 0;
+		candidates = 0;
+		resultSource = Standardizer.RESULT_MATCHED;
+	}
+
+	void countLookups(int lookups, int candidates) {
+		lookupsLeft -= lookups;
+		candidatesLeft -= candidates;
+		this.lookups += lookups;
+		this.candidates += candidates;
+	}
+
+	/**
+	 * @return true (and mark the call degraded) if the budget is used up
+	 */
+	boolean isOverBudget() {
+		if (!degraded && (lookupsLeft < 0 || candidatesLeft < 0 ||
+				(deadlineNanos != Long.MAX_VALUE && System.nanoTime() > deadlineNanos))) {
+			degraded = true;
+		}
+		return degraded;
+	}
+}
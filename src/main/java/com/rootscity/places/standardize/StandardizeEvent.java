@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event for one Standardizer.standardize call.
+ * Only calls slower than the threshold are recorded, and nothing is recorded unless a recording enables the event.
+ */
+@Name("com.rootscity.places.Standardize")
+@Label("Standardize")
+@Category({"Places", "Standardizer"})
+@Description("A place text standardized by Standardizer.standardize")
+@Threshold("20 ms")
+@StackTrace(false)
+class StandardizeEvent extends Event {
+	@Label("Input Length")
+	int inputLength;
+
+	@Label("Levels")
+	int levels;
+
+	@Label("Words Looked Up")
+	int lookups;
+
+	@Label("Candidates")
+	@Description("Place ids returned by the word lookups")
+	int candidates;
+
+	@Label("Results")
+	int results;
+
+	@Label("Mode")
+	String mode;
+
+	@Label("Backend")
+	String backend;
+
+	@Label("Result Source")
+	@Description("exact (exact match index), shared (shared result cache hit) or matched")
+	String resultSource;
+
+	@Label("Degraded")
+	boolean degraded;
+}
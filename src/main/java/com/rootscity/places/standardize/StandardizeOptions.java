@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+/**
+ * Request options that don't change between calls: default country, mode and number of results.
+ * Options returned by Standardizer.compileOptions have the default country already resolved to a place id,
+ * and, when the index has a hierarchy, to the default country's rank interval in it,
+ * so they can be created once and shared by any number of calls and threads.
+ * The per-query budget defaults to the queryBudget* settings in standardizer.properties; see withBudget.
+ */
+public final class StandardizeOptions {
+	static final int UNRESOLVED = -1;
+	static final int DEFAULT_BUDGET = -1;
+
+	public static final StandardizeOptions DEFAULT = new StandardizeOptions(null, 0, Standardizer.Mode.BEST, 1);
+
+	private final String defaultCountry;
+	private final int defaultCountryId;
+	private final Standardizer.Mode mode;
+	private final int numResults;
+	private final long budgetMillis;
+	private final int maxLookups;
+	private final int maxCandidates;
+	// ranks [countryRank, countryEnd) of the default country and the places in it, in countryHierarchy; null when unknown
+	private final Hierarchy countryHierarchy;
+	private final int countryRank;
+	private final int countryEnd;
+
+	StandardizeOptions(String defaultCountry, int defaultCountryId, Standardizer.Mode mode, int numResults) {
+		this(defaultCountry, defaultCountryId, mode, numResults, null, 0, 0);
+	}
+
+	StandardizeOptions(String defaultCountry, int defaultCountryId, Standardizer.Mode mode, int numResults,
+	                   Hierarchy countryHierarchy, int countryRank, int countryEnd) {
+		this(defaultCountry, defaultCountryId, mode, numResults, DEFAULT_BUDGET, DEFAULT_BUDGET, DEFAULT_BUDGET,
+				countryHierarchy, countryRank, countryEnd);
+	}
+
+	private StandardizeOptions(String defaultCountry, int defaultCountryId, Standardizer.Mode mode, int numResults,
+	                           long budgetMillis, int maxLookups, int maxCandidates,
+	                           Hierarchy countryHierarchy, int countryRank, int countryEnd) {
+		this.defaultCountry = defaultCountry;
+		this.defaultCountryId = defaultCountryId;
+		this.mode = mode;
+		this.numResults = numResults;
+		this.budgetMillis = budgetMillis;
+		this.maxLookups = maxLookups;
+		this.maxCandidates = maxCandidates;
+		this.countryHierarchy = countryHierarchy;
+		this.countryRank = countryRank;
+		this.countryEnd = countryEnd;
+	}
+
+	/**
+	 * Copy of these options with a different per-query budget. A call that runs out of budget stops matching further levels
+	 * and returns what it matched so far, marked degraded.
+	 * @param budgetMillis wall-clock time per call
+	 * @param maxLookups words looked up in the word index per call
+	 * @param maxCandidates place ids returned by those lookups per call
+	 * For each limit, 0 means unlimited and a negative value means the standardizer's default.
+	 */
+	public StandardizeOptions withBudget(long budgetMillis, int maxLookups, int maxCandidates) {
+		return new StandardizeOptions(defaultCountry, defaultCountryId, mode, numResults, budgetMillis, maxLookups, maxCandidates,
+				countryHierarchy, countryRank, countryEnd);
+	}
+
+	/**
+	 * Options whose default country is resolved by the standardizer the first time they're used in a context
+	 */
+	static StandardizeOptions unresolved(String defaultCountry, Standardizer.Mode mode, int numResults) {
+		boolean hasCountry = defaultCountry != null && defaultCountry.length() > 0;
+		return new StandardizeOptions(defaultCountry, hasCountry ? UNRESOLVED : 0, mode, numResults);
+	}
+
+	public String getDefaultCountry() {
+		return defaultCountry;
+	}
+
+	/**
+	 * @return id of the place the default country resolved to; 0 if there is no default country or it didn't match a place
+	 */
+	public int getDefaultCountryId() {
+		return defaultCountryId;
+	}
+
+	boolean isResolved() {
+		return defaultCountryId != UNRESOLVED;
+	}
+
+	public Standardizer.Mode getMode() {
+		return mode;
+	}
+
+	public int getNumResults() {
+		return numResults;
+	}
+
+	public long getBudgetMillis() {
+		return budgetMillis;
+	}
+
+	public int getMaxLookups() {
+		return maxLookups;
+	}
+
+	public int getMaxCandidates() {
+		return maxCandidates;
+	}
+
+	/**
+	 * @return the hierarchy getCountryRank and getCountryEnd refer to; null if the country's interval isn't known
+	 */
+	Hierarchy getCountryHierarchy() {
+		return countryHierarchy;
+	}
+
+	int getCountryRank() {
+		return countryRank;
+	}
+
+	int getCountryEnd() {
+		return countryEnd;
+	}
+}
@@ -16,16 +16,13 @@
 
 package com.rootscity.places.standardize;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.collect.TreeMultimap;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.primitives.Ints;
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 import com.mchange.v2.c3p0.DataSources;
-import com.rootscity.common.DataBase;
 import com.rootscity.common.Util;
 import com.rootscity.common.stats;
-import org.apache.commons.lang3.StringUtils;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.Serializer;
@@ -33,12 +30,13 @@ import org.mapdb.Serializer;
 import javax.sql.DataSource;
 import javax.xml.bind.annotation.XmlRootElement;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 /**
  * User: dallan
@@ -59,14 +57,31 @@ public class Standardizer {
 
 	public static final int MAX_LEVELS = 4;
 	public static final int TOP_LEVEL = 1;
-	public static final int PLACE_CACHE_MAX_SIZE = 50000;
-	public static final int PLACE_CACHE_MAX_SECONDS = 3600;
-	public static final int WORD_CACHE_MAX_SIZE = 50000;
-	public static final int WORD_CACHE_MAX_SECONDS = 3600;
 	public static final String DB_DRIVER_CLASS = "com.mysql.jdbc.Driver";
+	public static final String H2_DRIVER_CLASS = "org.h2.Driver";
+	// connections in the database pool and threads serving a shard; enough that callers on every core rarely wait.
+	// Calls share one Standardizer without locking it: per-call state is in StandardizeContext, and the only locks
+	// on the matching path are the caches' own (Guava segments, SharedResultCache stripes) and StaticScores growing
+	public static final int CONCURRENCY = Math.max(16, 2 * Runtime.getRuntime().availableProcessors());
+	public static final String META_STATIC_SCORES = "staticScores";
+	public static final String META_STATIC_SCORE_SETTINGS = "staticScoreSettings";
+	public static final String META_WORD_FILTER = "wordFilter";
+	public static final String META_HIERARCHY = "hierarchy";
+	public static final String META_CHILDREN = "children";
+	public static final String WORD_POSTINGS_MAP = "wordPostings";
+	public static final double WORD_FILTER_FPP = 0.01;
+	private static final int WORD_FILTER_MAGIC = 0x504c5733; // PLW3
+	public static final long CACHE_SNAPSHOT_SECONDS = 600;
+	public static final int SNAPSHOT_FETCH_SIZE = 10000;
+	// where a result came from, as reported in StandardizeEvent
+	public static final String RESULT_EXACT = "exact";
+	public static final String RESULT_SHARED = "shared";
+	public static final String RESULT_MATCHED = "matched";
 
 	private static Logger logger = Logger.getLogger("places.standardize");
 	private static int USA_ID = 1500;
+	// single words that are never looked up on their own when a level has more than one word
+	private static final Set<String> SKIPPED_SINGLE_WORDS = new HashSet<>(Arrays.asList("de", "la"));
 	private static Standardizer standardizer = new Standardizer();
 
 	public static Standardizer getInstance() {
@@ -77,6 +92,7 @@ public class Standardizer {
 	public static class PlaceScore {
 		private Place place;
 		private double score;
+		private boolean degraded = false;
 
 		public PlaceScore(Place place, double score) {
 			this.place = place;
@@ -90,184 +106,279 @@ public class Standardizer {
 		public double getScore() {
 			return score;
 		}
+
+		/**
+		 * @return true if the call ran out of its budget, so this is the best match of the levels matched before it stopped
+		 */
+		public boolean isDegraded() {
+			return degraded;
+		}
 	}
 
 	private static ComboPooledDataSource staticDS = null;
 
 	private placeNormalizer pn = null;
+	private Properties properties = null;
 	private Set<String> typeWords = null;
 	private Map<String, String> abbreviations = null;
 	private Set<String> noiseWords = null;
 
 	private DB diskDB;
-	private DataBase db;
 
 	private Map<Integer, Place> placeIndex = null;
 	private Map<String, int[]> wordIndex = null;
+	// wordIndex when it serves the word store as posting lists of hierarchy ranks; null otherwise
+	private PostingListMap rankPostings = null;
+	// auxiliary structures stored alongside the place and word indexes
+	private Map<String, byte[]> metaIndex = null;
+
+	private PlaceStore placeStore = null;
+	private WordStore wordStore = null;
+	private volatile boolean ready = false;
 
 	private DataSource dataSource = null;
 	private Set<Integer> largeCountries = null;
 	private Set<Integer> mediumCountries = null;
 	private double primaryMatchWeight = 0;
-	private Double[] largeCountryLevelWeights = null;
-	private Double[] mediumCountryLevelWeights = null;
-	private Double[] smallCountryLevelWeights = null;
-	private ErrorHandler errorHandler = null;
-
-	LoadingCache<Integer, Place> placeCache = CacheBuilder.newBuilder()
-			.maximumSize(PLACE_CACHE_MAX_SIZE)
-			.expireAfterWrite(PLACE_CACHE_MAX_SECONDS, TimeUnit.SECONDS)
-			.build(
-					new CacheLoader<Integer, Place>() {
-						public Place load(Integer id) {
-							Connection conn = null;
-							PreparedStatement ps = null;
-							ResultSet rs = null;
-							Place p = null;
+	private double[] largeCountryLevelWeights = null;
+	private double[] mediumCountryLevelWeights = null;
+	private double[] smallCountryLevelWeights = null;
+	// default per-query budget; 0 = unlimited
+	private long queryBudgetMillis = 0;
+	private int queryBudgetLookups = 0;
+	private int queryBudgetCandidates = 0;
+	// with a remote store, most places fetched up front per query; 0 = prefetch only the posting lists
+	private int queryPrefetchMaxPlaces = 0;
+	// scores of every place in the index, or in database mode of the places scored so far
+	private volatile StaticScores staticScores = new StaticScores();
+	// DFS numbering of the located-in tree; null when the index has none (database mode, older snapshots)
+	private Hierarchy hierarchy = null;
+	// children of every place, for browsing down the hierarchy; null when the index has none, or in database mode until first used
+	private volatile ChildIndex childIndex = null;
+	// database mode: where the children index is read from, and how many times edits have made it stale
+	private JdbcStore browseStore = null;
+	private volatile long browseEdits = 0;
+	// known raw texts, answered without matching
+	private volatile ExactMatchIndex exactMatches = null;
+	// results shared with the other standardizer processes on this host
+	private volatile SharedResultCache resultCache = null;
+	private int resultCacheEntries = 0;
+	private int resultCacheMaxResults = 0;
+	// words that might be in the word index; a miss means the word is certainly not indexed
+	private volatile BloomFilter<CharSequence> wordFilter = null;
+	// database mode: how many new words the filter was sized to take beyond place_words, and how many the change log
+	// has added since it was built; past that the false positive rate climbs, so it is rebuilt from place_words
+	private volatile long wordFilterCapacity = 0;
+	private volatile long wordFilterAdded = 0;
+	// error handler for calls that don't pass their own context
+	private volatile ErrorHandler errorHandler = null;
+
+	/**
+	 * Standardizer over the given stores, e.g. an InMemoryStore or a custom backend
+	 */
+	public Standardizer(PlaceStore placeStore, WordStore wordStore) {
+		try {
+			readProperties();
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Error reading file:" + e.getMessage());
+		}
+		this.placeStore = placeStore;
+		this.wordStore = wordStore;
+		staticScores = computeStaticScores();
+		ready = true;
+	}
+
+	/**
+	 * Backend is chosen by environment:
+	 * DATABASE_URL set: database through JdbcStore;
+	 * DATABASE_URL and DATABASE_SNAPSHOT set: the database tables streamed into a local places.db at DATABASE_SNAPSHOT
+	 * (when it doesn't exist yet, or always with DATABASE_SNAPSHOT_REFRESH=true), then served like any places.db;
+	 * otherwise places.db (from the classpath, or from the PLACES_DIR directory), as MapDB maps or, with PLACE_STORE=memory, copied into an InMemoryStore,
+	 * or with PLACE_STORE=flat, matched against a memory-mapped places.db.flat written next to places.db,
+	 * or with PLACE_STORE=tiered, the flat store behind a TieredPlaceStore holding top-level and hot places on the heap.
+	 * With EXACT_MATCH_FILE set to an ExactMatchIndex file, texts found there are answered without matching.
+	 * With RESULT_CACHE_FILE set, results are cached in a SharedResultCache in that file, shared by every process using it.
+	 * A database without a change log can't invalidate it, so there RESULT_CACHE_FILE is ignored.
+	 * With WORD_FILTER_FILE set, a database's word filter is kept in that file across restarts; only with a change log,
+	 * since nothing else would tell it about words added to place_words.
+	 * Browsing the hierarchy of a database reads a children index from the places table on the first browse call;
+	 * it is read again after the change log reports edits, and without a change log it isn't refreshed.
+	 */
+	private Standardizer() {
+		Reader indexReader = null;
+		Reader matchCountsReader = null;
+
+		try {
+			readProperties();
+			// identifies the index and settings the shared result cache was filled from, and for a database the last change applied
+			long indexGeneration = getPropertiesGeneration();
+			// without a change log nothing would clear results edits in the database have made stale
+			boolean resultsExpire = true;
+			// fills the database caches after startup; the standardizer isn't ready until it's done
+			Thread warmUp = null;
+
+			// initialize db
+			String databaseUrl = System.getenv("DATABASE_URL");
+			String databaseSnapshot = System.getenv("DATABASE_SNAPSHOT");
+			if (databaseUrl != null && databaseSnapshot == null) {
+				dataSource = getDataSource(databaseUrl);
+				JdbcStore jdbcStore = new JdbcStore(dataSource, properties);
+				placeStore = jdbcStore;
+				wordStore = jdbcStore;
+				browseStore = jdbcStore;
+				String wordFilterPath = System.getenv("WORD_FILTER_FILE");
+				if (wordFilterPath != null && !jdbcStore.hasChangeLog()) {
+					logger.warning("Not using word filter " + wordFilterPath + ": the database has no change log to keep it current");
+				}
+				File wordFilterFile = wordFilterPath != null && jdbcStore.hasChangeLog() ? new File(wordFilterPath) : null;
+				long wordFilterSeq = -1;
+				if (wordFilterFile != null) {
+					wordFilterSeq = initDatabaseWordFilter(wordFilterFile, jdbcStore);
+				}
+				// prefetch what was hot in the previous process, and keep saving what's hot now
+				String cacheSnapshotFile = System.getenv("CACHE_SNAPSHOT_FILE");
+				if (cacheSnapshotFile != null) {
+					File snapshot = new File(cacheSnapshotFile);
+					if (snapshot.exists()) {
+						warmUp = new Thread(() -> {
 							try {
-								conn = dataSource.getConnection();
-								ps = conn.prepareStatement("SELECT * FROM places WHERE id = ?");
-								ps.setInt(1, id);
-								rs = ps.executeQuery();
-								if (rs.next()) {
-									p = constructPlace(rs.getInt("id"), rs.getString("name"), rs.getString("alt_names"),
-											rs.getString("types"), rs.getInt("located_in_id"), rs.getString("also_located_in_ids"),
-											rs.getInt("level"), rs.getInt("country_id"), rs.getDouble("latitude"), rs.getDouble("longitude"),
-											rs.getString("sources"));
-								}
+								logger.info("Prefetched " + jdbcStore.warmUp(snapshot) + " cache entries from " + snapshot);
 							}
-							catch (SQLException e) {
-								logger.severe("Error reading places: " + e);
+							catch (IOException e) {
+								logger.warning("Error prefetching cache entries from " + snapshot + ": " + e);
 							}
 							finally {
-								try {
-									if (rs != null) {
-										rs.close();
-									}
-									if (ps != null) {
-										ps.close();
-									}
-									if (conn != null) {
-										conn.close();
-									}
-								}
-								catch (Exception e) {
-									// ignore
-								}
+								ready = true;
 							}
-							return p;
+						}, "cache-warm-up");
+						warmUp.setDaemon(true);
+					}
+					String seconds = System.getenv("CACHE_SNAPSHOT_SECONDS");
+					jdbcStore.scheduleCacheKeySnapshots(snapshot, seconds != null ? Long.parseLong(seconds) : CACHE_SNAPSHOT_SECONDS);
+				}
+				// evict what was edited instead of waiting for it to expire; words added to the table must pass the filter,
+				// which is saved with the last change applied so a restart replays only the changes since
+				resultsExpire = jdbcStore.hasChangeLog();
+				if (resultsExpire) {
+					jdbcStore.scheduleChangePolling(wordFilterSeq, word -> {
+						BloomFilter<CharSequence> filter = wordFilter;
+						// put is true when the word wasn't in the filter yet; called only from the polling thread
+						if (filter != null && filter.put(word)) {
+							wordFilterAdded++;
 						}
-					});
-
-	LoadingCache<String, int[]> wordCache = CacheBuilder.newBuilder()
-			.maximumSize(WORD_CACHE_MAX_SIZE)
-			.expireAfterWrite(WORD_CACHE_MAX_SECONDS, TimeUnit.SECONDS)
-			.build(
-					new CacheLoader<String, int[]>() {
-						public int[] load(String word) {
-							Connection conn = null;
-							PreparedStatement ps = null;
-							ResultSet rs = null;
-							int[] ids = null;
+					}, () -> {
+						SharedResultCache results = resultCache;
+						if (results != null) {
+							results.clear();
+						}
+						// edits may have moved places; the next browse call reads the links again
+						browseEdits++;
+						childIndex = null;
+						// and changed their names or levels; they are scored again when next matched
+						staticScores = new StaticScores();
+						if (wordFilterFile != null) {
 							try {
-								conn = dataSource.getConnection();
-								ps = conn.prepareStatement("SELECT ids FROM place_words WHERE word = ?");
-								ps.setString(1, word);
-								rs = ps.executeQuery();
-								if (rs.next()) {
-									ids = constructPlaceWords(rs.getString("ids"));
-								} else {
-									ids = new int[0];
+								if (wordFilterAdded > wordFilterCapacity) {
+									logger.info("Word filter " + wordFilterFile + " is full; rebuilding it");
+									// the changes up to getLastChangeSeq are in place_words, and later ones are replayed by the next poll
+									buildDatabaseWordFilter();
 								}
+								writeDatabaseWordFilter(wordFilterFile, jdbcStore.getLastChangeSeq());
 							}
-							catch (SQLException e) {
-								logger.severe("Error reading place_words: " + e);
+							catch (IOException | SQLException e) {
+								logger.warning("Error saving word filter " + wordFilterFile + ": " + e);
 							}
-							finally {
-								try {
-									if (rs != null) {
-										rs.close();
-									}
-									if (ps != null) {
-										ps.close();
-									}
-									if (conn != null) {
-										conn.close();
-									}
-								}
-								catch (Exception e) {
-									// ignore
-								}
-							}
-							return ids;
 						}
 					});
-
-	private Standardizer() {
-		pn = placeNormalizer.getInstance();
-
-		Reader indexReader = null;
-		Reader matchCountsReader = null;
-
-		try {
-			// read properties
-			Properties props = new Properties();
-			props.load(new InputStreamReader(getClass().getClassLoader().getResourceAsStream("standardizer.properties"), "UTF8"));
-
-			// read type words
-			typeWords = new HashSet<>(Arrays.asList(props.getProperty("typeWords").split(",")));
-
-			// read abbreviations
-			abbreviations = new HashMap<>();
-			for (String abbrMap : props.getProperty("abbreviations").split(",")) {
-				String[] fields = abbrMap.split("=");
-				abbreviations.put(fields[0], fields[1]);
-			}
-
-			// read noise words
-			noiseWords = new HashSet<>(Arrays.asList(props.getProperty("noiseWords").split(",")));
-
-			// read large countries
-			largeCountries = toIntegerSet(props.getProperty("largeCountries"));
-
-			// read medium countries
-			mediumCountries = toIntegerSet(props.getProperty("mediumCountries"));
-
-			// read large country level weights
-			largeCountryLevelWeights = toDoubleArray(props.getProperty("largeCountryLevelWeights"));
-
-			// read large country level weights
-			mediumCountryLevelWeights = toDoubleArray(props.getProperty("mediumCountryLevelWeights"));
-
-			// read large country level weights
-			smallCountryLevelWeights = toDoubleArray(props.getProperty("smallCountryLevelWeights"));
-
-			primaryMatchWeight = Double.parseDouble(props.getProperty("primaryMatchWeight"));
-
-			// initialize db
-			String databaseUrl = System.getenv("DATABASE_URL");
-			if (databaseUrl != null) {
-				dataSource = getDataSource(databaseUrl);
+					// edits made while no process was polling are never replayed into the shared result cache,
+					// so results filled before the change this process starts from belong to another generation
+					indexGeneration ^= jdbcStore.getLastChangeSeq() * 0x9E3779B97F4A7C15L;
+				}
 			} else {
-				//db = new DataBase(true);
-				File dbFile = new File(getClass().getClassLoader().getResource("").toURI());
-				dbFile = new File(dbFile, "places.db");
-				Boolean create = !Util.decommpress(getClass().getClassLoader().getResourceAsStream("places.db.gz"), dbFile);
-
-				if (create) {
-					stats st = new stats("Creating map DB", -1L, 10000L);
-					initDB(dbFile, false);
-					indexReader = new InputStreamReader(getClass().getClassLoader().getResourceAsStream("place_words.tsv"), "UTF8");
-					readWordIndex(indexReader, "\t", st);
-					indexReader.close();
-					indexReader = new InputStreamReader(getClass().getClassLoader().getResourceAsStream("places.tsv"), "UTF8");
-					readPlaceIndex(indexReader, "\t", st);
-					diskDB.close();
-					File resFile = new File(dbFile.getPath().replaceAll("target.classes", "src/main/resources") + ".gz");
-					Util.commpress(dbFile, resFile);
-					st.cancel();
+				File dbFile;
+				String placesDir = System.getenv("PLACES_DIR");
+				if (databaseUrl != null) {
+					// the database stays the source of truth; queries are served from a local copy of it
+					dbFile = new File(databaseSnapshot);
+					if (!dbFile.exists() || "true".equals(System.getenv("DATABASE_SNAPSHOT_REFRESH"))) {
+						buildIndexFromDatabase(dbFile, getDataSource(databaseUrl));
+					}
+				} else if (placesDir != null) {
+					// index kept outside the classpath, e.g. one shard of a country-partitioned index
+					dbFile = new File(placesDir, "places.db");
+					if (!dbFile.exists()) {
+						try (Reader wordReader = new InputStreamReader(new FileInputStream(new File(placesDir, "place_words.tsv")), "UTF8");
+						     Reader placeReader = new InputStreamReader(new FileInputStream(new File(placesDir, "places.tsv")), "UTF8")) {
+							buildIndex(dbFile, wordReader, placeReader);
+						}
+					}
+				} else {
+					dbFile = new File(getClass().getClassLoader().getResource("").toURI());
+					dbFile = new File(dbFile, "places.db");
+					Boolean create = !Util.decommpress(getClass().getClassLoader().getResourceAsStream("places.db.gz"), dbFile);
+
+					if (create) {
+						indexReader = new InputStreamReader(getClass().getClassLoader().getResourceAsStream("place_words.tsv"), "UTF8");
+						Reader placeReader = new InputStreamReader(getClass().getClassLoader().getResourceAsStream("places.tsv"), "UTF8");
+						try {
+							buildIndex(dbFile, indexReader, placeReader);
+						}
+						finally {
+							placeReader.close();
+						}
+						File resFile = new File(dbFile.getPath().replaceAll("target.classes", "src/main/resources") + ".gz");
+						Util.commpress(dbFile, resFile);
+					}
 				}
 				initDB(dbFile, true);
+				indexGeneration ^= getIndexGeneration(dbFile);
+				String storeType = System.getenv("PLACE_STORE");
+				if ("memory".equals(storeType)) {
+					InMemoryStore memoryStore = new InMemoryStore(placeIndex, wordIndex);
+					placeStore = memoryStore;
+					wordStore = memoryStore;
+					rankPostings = null;
+				} else if ("flat".equals(storeType) || "tiered".equals(storeType)) {
+					File flatFile = new File(dbFile.getPath() + ".flat");
+					if (!flatFile.exists() || flatFile.lastModified() < dbFile.lastModified()) {
+						FlatPlaceStore.write(placeStore, flatFile);
+					}
+					placeStore = new FlatPlaceStore(flatFile, placeStore);
+					if ("tiered".equals(storeType)) {
+						TieredPlaceStore tieredStore = new TieredPlaceStore(placeStore, properties);
+						logger.info("Tiered place store: " + tieredStore.getTierReport());
+						placeStore = tieredStore;
+					}
+				}
+			}
+			String exactMatchFile = System.getenv("EXACT_MATCH_FILE");
+			if (exactMatchFile != null && new File(exactMatchFile).exists()) {
+				try {
+					exactMatches = new ExactMatchIndex(new File(exactMatchFile));
+					logger.info("Loaded " + exactMatches.size() + " exact matches from " + exactMatchFile);
+				}
+				catch (IOException e) {
+					// e.g. a file of the previous format; every text is matched until it is written again
+					logger.warning("Not using exact matches " + exactMatchFile + ": " + e.getMessage());
+				}
+			}
+			String resultCacheFile = System.getenv("RESULT_CACHE_FILE");
+			if (resultCacheFile != null && !resultsExpire) {
+				logger.warning("Not using result cache " + resultCacheFile + ": the database has no change log to invalidate it");
+			} else if (resultCacheFile != null) {
+				try {
+					resultCache = new SharedResultCache(new File(resultCacheFile), resultCacheEntries, resultCacheMaxResults, indexGeneration);
+					logger.info("Result cache: " + resultCache.getReport());
+				}
+				catch (IOException e) {
+					logger.warning("Not using result cache " + resultCacheFile + ": " + e.getMessage());
+				}
+			}
+			if (warmUp != null) {
+				warmUp.start();
+			} else {
+				ready = true;
 			}
 		}
 		catch (Exception e) {
@@ -288,31 +399,367 @@ public class Standardizer {
 		}
 	}
 
+	private void readProperties() throws IOException {
+		pn = placeNormalizer.getInstance();
+
+		// read properties
+		Properties props = new Properties();
+		props.load(new InputStreamReader(getClass().getClassLoader().getResourceAsStream("standardizer.properties"), "UTF8"));
+		properties = props;
+
+		// read type words
+		typeWords = new HashSet<>(Arrays.asList(props.getProperty("typeWords").split(",")));
+
+		// read abbreviations
+		abbreviations = new HashMap<>();
+		for (String abbrMap : props.getProperty("abbreviations").split(",")) {
+			String[] fields = abbrMap.split("=");
+			abbreviations.put(fields[0], fields[1]);
+		}
+
+		// read noise words
+		noiseWords = new HashSet<>(Arrays.asList(props.getProperty("noiseWords").split(",")));
+
+		// read large countries
+		largeCountries = toIntegerSet(props.getProperty("largeCountries"));
+
+		// read medium countries
+		mediumCountries = toIntegerSet(props.getProperty("mediumCountries"));
+
+		// read large country level weights
+		largeCountryLevelWeights = toDoubleArray(props.getProperty("largeCountryLevelWeights"));
+
+		// read large country level weights
+		mediumCountryLevelWeights = toDoubleArray(props.getProperty("mediumCountryLevelWeights"));
+
+		// read large country level weights
+		smallCountryLevelWeights = toDoubleArray(props.getProperty("smallCountryLevelWeights"));
+
+		primaryMatchWeight = Double.parseDouble(props.getProperty("primaryMatchWeight"));
+
+		// read the default per-query budget
+		queryBudgetMillis = Long.parseLong(props.getProperty("queryBudgetMillis", "0"));
+		queryBudgetLookups = Integer.parseInt(props.getProperty("queryBudgetLookups", "0"));
+		queryBudgetCandidates = Integer.parseInt(props.getProperty("queryBudgetCandidates", "0"));
+
+		queryPrefetchMaxPlaces = Integer.parseInt(props.getProperty("queryPrefetchMaxPlaces", "0"));
+
+		resultCacheEntries = Integer.parseInt(props.getProperty("resultCacheEntries", "262144"));
+		resultCacheMaxResults = Integer.parseInt(props.getProperty("resultCacheMaxResults", "4"));
+	}
+
+	/**
+	 * Create places.db from the place_words and places tsv files, with the meta structures built alongside them
+	 */
+	private void buildIndex(File dbFile, Reader wordReader, Reader placeReader) throws IOException {
+		stats st = new stats("Creating map DB", -1L, 10000L);
+		initDB(dbFile, false);
+		readWordIndex(wordReader, "\t", st);
+		readPlaceIndex(placeReader, "\t", st);
+		writeMeta();
+		diskDB.close();
+		st.cancel();
+	}
+
+	/**
+	 * Build places.db from the places and place_words tables, streaming both through forward-only, read-only cursors.
+	 * The snapshot is written next to dbFile and renamed when complete, so a failed sync leaves the previous snapshot.
+	 * MySQL only honours the fetch size with useCursorFetch=true in the url; otherwise it reads each table in one go.
+	 */
+	private void buildIndexFromDatabase(File dbFile, DataSource ds) throws IOException, SQLException {
+		stats st = new stats("Creating map DB from database", -1L, 10000L);
+		// MapDB creates a new store in an empty file
+		File tmpFile = File.createTempFile(dbFile.getName(), ".tmp", dbFile.getAbsoluteFile().getParentFile());
+		try {
+			initDB(tmpFile, false);
+			writeDatabaseSnapshot(ds, st);
+			Files.move(tmpFile.toPath(), dbFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			tmpFile.delete();
+		}
+	}
+
+	private void writeDatabaseSnapshot(DataSource ds, stats st) throws IOException, SQLException {
+		try (Connection conn = ds.getConnection()) {
+			// both tables read in one read-only transaction, so the posting lists and the places are from the same moment
+			boolean autoCommit = conn.getAutoCommit();
+			int isolation = conn.getTransactionIsolation();
+			conn.setAutoCommit(false);
+			conn.setReadOnly(true);
+			conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			try {
+				readDatabaseTables(conn, st);
+				conn.commit();
+			}
+			catch (SQLException | RuntimeException e) {
+				conn.rollback();
+				throw e;
+			}
+			finally {
+				// the connection goes back to the pool
+				conn.setTransactionIsolation(isolation);
+				conn.setReadOnly(false);
+				conn.setAutoCommit(autoCommit);
+			}
+			writeMeta();
+		}
+		finally {
+			diskDB.close();
+			st.cancel();
+		}
+	}
+
+	private void readDatabaseTables(Connection conn, stats st) throws SQLException {
+		try (Statement s = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			s.setFetchSize(SNAPSHOT_FETCH_SIZE);
+			try (ResultSet rs = s.executeQuery("SELECT word, ids FROM place_words")) {
+				while (rs.next()) {
+					st.tick();
+					wordIndex.put(rs.getString(1), constructPlaceWords(rs.getString(2)));
+				}
+			}
+		}
+		try (Statement s = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			s.setFetchSize(SNAPSHOT_FETCH_SIZE);
+			try (ResultSet rs = s.executeQuery("SELECT * FROM places")) {
+				while (rs.next()) {
+					st.tick();
+					Place p = JdbcStore.constructPlace(rs);
+					placeIndex.put(p.getId(), p);
+					staticScores.set(p.getId(), computeStaticScore(p.getLevel(), p.getCountryId(), p.getName()));
+				}
+			}
+		}
+	}
+
+	private void writeMeta() throws IOException {
+		PlaceLinks links = new PlaceLinks();
+		placeStore.forEachPlace(links::add);
+		hierarchy = Hierarchy.build(links);
+		metaIndex.put(META_HIERARCHY, hierarchy.toBytes());
+		childIndex = ChildIndex.build(links, hierarchy);
+		metaIndex.put(META_CHILDREN, childIndex.toBytes());
+		// posting lists are stored as compressed DFS ranks, so the places under a parent are one run of each list
+		Map<String, byte[]> postings = diskDB.hashMap(WORD_POSTINGS_MAP)
+				.keySerializer(Serializer.STRING)
+				.valueSerializer(Serializer.BYTE_ARRAY).createOrOpen();
+		for (Map.Entry<String, int[]> entry : wordIndex.entrySet()) {
+			postings.put(entry.getKey(), PostingListMap.encode(entry.getValue(), hierarchy));
+		}
+		metaIndex.put(META_STATIC_SCORES, staticScores.toBytes());
+		metaIndex.put(META_STATIC_SCORE_SETTINGS, getStaticScoreSettings().getBytes(StandardCharsets.UTF_8));
+		buildWordFilter(wordIndex.keySet(), wordIndex.size());
+		metaIndex.put(META_WORD_FILTER, wordFilterToBytes());
+	}
+
 	private void initDB(File dbFile, Boolean readonly) {
 		if (readonly) {
 			diskDB = DBMaker.fileDB(dbFile).fileMmapEnable().closeOnJvmShutdown().readOnly().make();
 		} else {
 			diskDB = DBMaker.fileDB(dbFile).fileMmapEnable().concurrencyDisable().closeOnJvmShutdown().make();
 		}
-		wordIndex = diskDB.hashMap("word")
-				.keySerializer(Serializer.STRING)
-				.valueSerializer(Serializer.INT_ARRAY).createOrOpen(); //new HashMap<String, Integer[]>();
+		// older snapshots don't have a meta map, and a read-only db can't create one
+		if (!readonly || diskDB.exists("meta")) {
+			metaIndex = diskDB.hashMap("meta")
+					.keySerializer(Serializer.STRING)
+					.valueSerializer(Serializer.BYTE_ARRAY).createOrOpen();
+		} else {
+			metaIndex = new HashMap<>();
+		}
+		byte[] scores = metaIndex.get(META_STATIC_SCORES);
+		byte[] scoreSettings = metaIndex.get(META_STATIC_SCORE_SETTINGS);
+		boolean scoresCurrent = scoreSettings != null &&
+				getStaticScoreSettings().equals(new String(scoreSettings, StandardCharsets.UTF_8));
+		if (readonly && scores != null && scoresCurrent) {
+			staticScores = StaticScores.fromBytes(scores);
+		}
+		byte[] hierarchyBytes = metaIndex.get(META_HIERARCHY);
+		if (readonly && hierarchyBytes != null) {
+			hierarchy = Hierarchy.fromBytes(hierarchyBytes);
+		}
+		byte[] childBytes = metaIndex.get(META_CHILDREN);
+		if (readonly && childBytes != null && hierarchy != null) {
+			childIndex = ChildIndex.fromBytes(childBytes, hierarchy);
+		}
+		byte[] filter = metaIndex.get(META_WORD_FILTER);
+		if (readonly && filter != null) {
+			try {
+				wordFilter = BloomFilter.readFrom(new ByteArrayInputStream(filter), Funnels.stringFunnel(StandardCharsets.UTF_8));
+			}
+			catch (IOException e) {
+				logger.severe("Error reading word filter: " + e);
+			}
+		}
+		if (!readonly) {
+			// words are collected on the heap and written compressed by writeMeta
+			wordIndex = new HashMap<>();
+		} else if (diskDB.exists(WORD_POSTINGS_MAP)) {
+			Map<String, byte[]> postings = diskDB.hashMap(WORD_POSTINGS_MAP)
+					.keySerializer(Serializer.STRING)
+					.valueSerializer(Serializer.BYTE_ARRAY).createOrOpen();
+			PostingListMap postingListMap = new PostingListMap(postings, hierarchy);
+			wordIndex = postingListMap;
+			rankPostings = hierarchy != null ? postingListMap : null;
+		} else {
+			// older snapshots hold uncompressed posting lists
+			wordIndex = diskDB.hashMap("word")
+					.keySerializer(Serializer.STRING)
+					.valueSerializer(Serializer.INT_ARRAY).createOrOpen();
+		}
 		placeIndex = diskDB.hashMap("src/main/com/rootscity/places")
 				.keySerializer(Serializer.INTEGER)
 				.valueSerializer(Serializer.JAVA).createOrOpen(); // new HashMap<Integer, Place>();
+		MapStore mapStore = new MapStore(placeIndex, wordIndex, "mapdb");
+		placeStore = mapStore;
+		wordStore = mapStore;
+		// the scores were built with other weights or country lists than standardizer.properties has now
+		if (readonly && scores != null && !scoresCurrent) {
+			logger.warning("Static scores in " + dbFile + " are out of date; recomputing them");
+			staticScores = computeStaticScores();
+		}
+	}
+
+	/**
+	 * @return scores of the places placeStore can enumerate (in database mode, only the cached ones)
+	 */
+	private StaticScores computeStaticScores() {
+		StaticScores scores = new StaticScores();
+		placeStore.forEachPlace(p -> scores.set(p.getId(), computeStaticScore(p.getLevel(), p.getCountryId(), p.getName())));
+		return scores;
+	}
+
+	/**
+	 * @return the properties computeStaticScore depends on, stored with the scores to detect when they change
+	 */
+	private String getStaticScoreSettings() {
+		return new TreeSet<>(largeCountries) + ";" + new TreeSet<>(mediumCountries) + ";" +
+				Arrays.toString(largeCountryLevelWeights) + ";" + Arrays.toString(mediumCountryLevelWeights) + ";" +
+				Arrays.toString(smallCountryLevelWeights);
+	}
+
+	/**
+	 * @return a value that changes with the standardizer properties, which results also depend on
+	 */
+	private long getPropertiesGeneration() {
+		CRC32 crc = new CRC32();
+		for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+			crc.update((key + "=" + properties.getProperty(key) + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		return crc.getValue() << 16;
+	}
+
+	/**
+	 * @return a value that changes when places.db is rebuilt with different contents, but not when the same index is unpacked again
+	 */
+	private long getIndexGeneration(File dbFile) {
+		CRC32 crc = new CRC32();
+		for (String key : new TreeSet<>(metaIndex.keySet())) {
+			crc.update(metaIndex.get(key));
+		}
+		return dbFile.length() << 32 ^ crc.getValue();
+	}
+
+	private void buildWordFilter(Iterable<String> words, int expectedWords) {
+		BloomFilter<CharSequence> filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+				Math.max(expectedWords, 1), WORD_FILTER_FPP);
+		for (String word : words) {
+			filter.put(word);
+		}
+		wordFilter = filter;
+	}
+
+	private byte[] wordFilterToBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		wordFilter.writeTo(bytes);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * The database has no snapshot to store the filter in, so keep it in a local file.
+	 * Only used with a change log: the file records the last change applied to it, and the changes since are replayed
+	 * by the first poll. It also records how many new words it has room for and how many were added since,
+	 * and is rebuilt from place_words once it is full.
+	 * @return seq of the last change applied to the filter
+	 */
+	private long initDatabaseWordFilter(File filterFile, JdbcStore jdbcStore) throws IOException, SQLException {
+		if (filterFile.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filterFile)))) {
+				if (in.readInt() == WORD_FILTER_MAGIC) {
+					long capacity = in.readLong();
+					long added = in.readLong();
+					long storedSeq = in.readLong();
+					if (storedSeq >= 0 && added <= capacity) {
+						wordFilter = BloomFilter.readFrom(in, Funnels.stringFunnel(StandardCharsets.UTF_8));
+						wordFilterCapacity = capacity;
+						wordFilterAdded = added;
+						return storedSeq;
+					}
+				}
+			}
+			catch (IOException e) {
+				// an older or damaged file; rebuild it
+			}
+			logger.info("Word filter " + filterFile + " is out of date or full; rebuilding it");
+		}
+		// read before the words, so changes made while they are read are replayed
+		long changeSeq = jdbcStore.readLastChangeSeq();
+		buildDatabaseWordFilter();
+		writeDatabaseWordFilter(filterFile, changeSeq);
+		return changeSeq;
+	}
+
+	// sized with room for a quarter more words, so the change log can add some before it has to be rebuilt
+	private void buildDatabaseWordFilter() throws SQLException {
+		List<String> words = new ArrayList<>();
+		try (Connection conn = dataSource.getConnection();
+		     Statement s = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			s.setFetchSize(SNAPSHOT_FETCH_SIZE);
+			try (ResultSet rs = s.executeQuery("SELECT word FROM place_words")) {
+				while (rs.next()) {
+					words.add(rs.getString(1));
+				}
+			}
+		}
+		long capacity = words.size() + words.size() / 4 + 1000;
+		buildWordFilter(words, (int) Math.min(Integer.MAX_VALUE, capacity));
+		wordFilterCapacity = capacity - words.size();
+		wordFilterAdded = 0;
+	}
+
+	// written to a temporary file and renamed, so a process starting meanwhile reads either the old or the new filter
+	private void writeDatabaseWordFilter(File filterFile, long changeSeq) throws IOException {
+		File dir = filterFile.getAbsoluteFile().getParentFile();
+		File tmpFile = File.createTempFile(filterFile.getName(), ".tmp", dir);
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+				out.writeInt(WORD_FILTER_MAGIC);
+				out.writeLong(wordFilterCapacity);
+				out.writeLong(wordFilterAdded);
+				out.writeLong(changeSeq);
+				wordFilter.writeTo(out);
+			}
+			Files.move(tmpFile.toPath(), filterFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			tmpFile.delete();
+		}
 	}
 
 	private synchronized DataSource getDataSource(String url) {
 		if (staticDS == null) {
 			staticDS = new ComboPooledDataSource();
+			// H2 stands in for MySQL in local testing (see LocalDatabase); its driver is only on the test classpath
+			String driverClass = url.startsWith("jdbc:h2:") ? H2_DRIVER_CLASS : DB_DRIVER_CLASS;
 			try {
-				Class.forName(DB_DRIVER_CLASS).newInstance();
-				staticDS.setDriverClass(DB_DRIVER_CLASS);
+				Class.forName(driverClass).newInstance();
+				staticDS.setDriverClass(driverClass);
 			}
 			catch (Exception e) {
 				throw new RuntimeException("Error loading database driver: " + e.getMessage());
 			}
 			staticDS.setJdbcUrl(url);
+			staticDS.setMaxPoolSize(CONCURRENCY);
 			Runtime.getRuntime().addShutdownHook(new Thread() {
 				public void run() {
 					try {
@@ -335,16 +782,16 @@ public class Standardizer {
 		return result;
 	}
 
-	private Double[] toDoubleArray(String value) {
+	private double[] toDoubleArray(String value) {
 		String[] fields = value.split(",");
-		Double[] result = new Double[fields.length];
+		double[] result = new double[fields.length];
 		for (int i = 0; i < fields.length; i++) {
 			result[i] = Double.parseDouble(fields[i]);
 		}
 		return result;
 	}
 
-	private int[] constructPlaceWords(String idString) {
+	static int[] constructPlaceWords(String idString) {
 		String[] idStrings = idString.split(",");
 		int[] ids = new int[idStrings.length];
 		for (int i = 0; i < idStrings.length; i++) {
@@ -366,18 +813,21 @@ public class Standardizer {
 			throws IOException {
 		if (wordIndex == null) {
 			wordIndex = new HashMap<>();
+			useHeapIndexes();
 		}
 		BufferedReader r = new BufferedReader(reader);
 		String line;
 		while ((line = r.readLine()) != null) {
-			st.tick();
+			if (st != null) {
+				st.tick();
+			}
 			String[] fields = line.split(sep);
 			int[] ids = constructPlaceWords(fields[1]);
 			wordIndex.put(fields[0], ids);
 		}
 	}
 
-	private void setAltNames(Place p, String[] altNameStrings) {
+	private static void setAltNames(Place p, String[] altNameStrings) {
 		Place.AltName[] altNames = new Place.AltName[altNameStrings.length];
 		for (int i = 0; i < altNameStrings.length; i++) {
 			String altNameString = altNameStrings[i];
@@ -393,7 +843,7 @@ public class Standardizer {
 		p.setAltNames(altNames);
 	}
 
-	private void setSources(Place p, String[] sourceStrings) {
+	private static void setSources(Place p, String[] sourceStrings) {
 		Place.Source[] sources = new Place.Source[sourceStrings.length];
 		for (int i = 0; i < sourceStrings.length; i++) {
 			String sourceString = sourceStrings[i];
@@ -409,8 +859,8 @@ public class Standardizer {
 		p.setSources(sources);
 	}
 
-	private Place constructPlace(int id, String name, String altNames, String types, int locatedInId, String alsoLocatedInIds,
-	                             int level, int countryId, double latitude, double longitude, String sources) {
+	static Place constructPlace(int id, String name, String altNames, String types, int locatedInId, String alsoLocatedInIds,
+	                            int level, int countryId, double latitude, double longitude, String sources) {
 		Place p = new Place();
 //      p.setStandardizer(this);
 		p.setId(id);
@@ -440,6 +890,14 @@ public class Standardizer {
 		return p;
 	}
 
+	// serve lookups from the HashMaps filled by readPlaceIndex/readWordIndex
+	private void useHeapIndexes() {
+		MapStore heapStore = new MapStore(placeIndex == null ? new HashMap<>() : placeIndex,
+				wordIndex == null ? new HashMap<>() : wordIndex, "heap");
+		placeStore = heapStore;
+		wordStore = heapStore;
+	}
+
 	/**
 	 * Read the place index
 	 * You would not normally call this function. Used in testing
@@ -453,11 +911,14 @@ public class Standardizer {
 			throws IOException {
 		if (placeIndex ==null) {
 			placeIndex = new HashMap<>();
+			useHeapIndexes();
 		}
 		BufferedReader r = new BufferedReader(reader);
 		String line;
 		while ((line = r.readLine()) != null) {
-			st.tick();
+			if (st != null) {
+				st.tick();
+			}
 			String[] fields = line.split(sep);
 			Place p = constructPlace(
 					Integer.parseInt(fields[0]), // id
@@ -472,123 +933,289 @@ public class Standardizer {
 					fields.length > 9 && fields[9].length() > 0 ? Double.parseDouble(fields[9]) : 0.0,
 					fields.length > 10 && fields[10].length() > 0 ? fields[10] : "");
 			placeIndex.put(p.getId(), p);
+			staticScores.set(p.getId(), computeStaticScore(p.getLevel(), p.getCountryId(), p.getName()));
+		}
+	}
+
+	/**
+	 * Estimate the heap used by the loaded place index (in database mode, by the cached places).
+	 * Iterates over every place, so on a memory-mapped index this deserializes the whole index.
+	 */
+	public IndexFootprint getIndexFootprint() {
+		IndexFootprint footprint = new IndexFootprint();
+		placeStore.forEachPlace(footprint::add);
+		logger.info("Place index footprint: " + footprint);
+		return footprint;
+	}
+
+	/**
+	 * Cache results in resultCache, shared with other processes; null to stop
+	 */
+	public void setResultCache(SharedResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * @return the cached results for key, or null on a miss or if a cached place no longer exists
+	 */
+	private List<PlaceScore> getSharedResults(SharedResultCache results, long key) {
+		SharedResultCache.Result cached = results.get(key);
+		if (cached == null) {
+			return null;
+		}
+		List<PlaceScore> placeScores = new ArrayList<>(cached.ids.length);
+		for (int i = 0; i < cached.ids.length; i++) {
+			Place p = placeStore.getPlace(cached.ids[i]);
+			if (p == null) {
+				return null;
+			}
+			placeScores.add(new PlaceScore(p, cached.scores[i]));
+		}
+		return placeScores;
+	}
+
+	private void putSharedResults(SharedResultCache results, long key, int epoch, List<PlaceScore> placeScores) {
+		int[] ids = new int[placeScores.size()];
+		double[] scores = new double[placeScores.size()];
+		for (int i = 0; i < ids.length; i++) {
+			if (placeScores.get(i).getPlace() == null) {
+				return;
+			}
+			ids[i] = placeScores.get(i).getPlace().getId();
+			scores[i] = placeScores.get(i).getScore();
 		}
+		results.put(key, epoch, ids, scores);
+	}
+
+	/**
+	 * Answer texts found in exactMatches with their place instead of matching them; null to always match
+	 */
+	public void setExactMatchIndex(ExactMatchIndex exactMatches) {
+		this.exactMatches = exactMatches;
 	}
 
+	/**
+	 * Set the error handler used by the standardize methods that don't take a StandardizeContext
+	 */
 	public void setErrorHandler(ErrorHandler errorHandler) {
 		this.errorHandler = errorHandler;
 	}
 
-	// return null if word not found
-	private List<Integer> lookupWord(String word) {
-		int[] ids = null;
-		if (db != null) {
-			Statement s = null;
-			try {
-				List<Integer> res = new ArrayList<>();
-				s = db.getConnection().createStatement();
-				ResultSet rs = s.executeQuery("select ids FROM place_words WHERE word='" + word + "'");
-				while (rs.next()) {
-					String val = rs.getString(0);
-					for (String id : val.split(",")) {
-						res.add(new Integer(id));
-					}
-				}
-				return res.isEmpty() ? null : res;
-			}
-			catch (Exception e) {
+	/**
+	 * Look up several words at once: one query for the uncached words in database mode.
+	 * Words the word filter rules out never reach the store.
+	 * @return map of the words that were found to their place ids
+	 */
+	private Map<String, List<Integer>> lookupWords(Collection<String> words) {
+		Map<String, List<Integer>> result = new HashMap<>();
+		List<String> candidates = new ArrayList<>(words.size());
+		for (String word : words) {
+			if (word != null && (wordFilter == null || wordFilter.mightContain(word))) {
+				candidates.add(word);
 			}
-			finally {
-				try {
-					s.close();
+		}
+		if (candidates.isEmpty()) {
+			return result;
+		}
+		StoreLookupEvent event = StoreLookupEvent.start();
+		if (rankPostings != null) {
+			// left encoded, so filterSubplaceMatches can skip the places outside the parents
+			for (String word : candidates) {
+				PostingListMap.Ids ids = rankPostings.getIds(word);
+				if (ids != null && ids.size() > 0) {
+					result.put(word, ids);
 				}
-				catch (SQLException e) {
+			}
+		} else if (wordStore instanceof InMemoryStore) {
+			// views of the store's postings array
+			for (String word : candidates) {
+				List<Integer> ids = ((InMemoryStore) wordStore).getIds(word);
+				if (ids != null && ids.size() > 0) {
+					result.put(word, ids);
 				}
 			}
-		} else if (wordIndex != null) {
-			ids = wordIndex.get(word);
 		} else {
-			try {
-				ids = wordCache.get(word);
-			}
-			catch (ExecutionException e) {
-				logger.severe("Error loading place words: " + e);
+			// wrapped, not copied; ids are boxed only as they are read
+			for (Map.Entry<String, int[]> entry : wordStore.lookupAll(candidates).entrySet()) {
+				result.put(entry.getKey(), Ints.asList(entry.getValue()));
 			}
 		}
-		if (ids != null && ids.length > 0) {
-			return Arrays.stream(ids).boxed().collect(Collectors.toList());
-		}
-		return null;
+		event.finish(wordStore.getName(), "words", candidates.size(), result.size());
+		return result;
 	}
 
-	public Place getPlace(int id) {
-		Place p = null;
-		if (db != null) {
-			Statement s = null;
-			try {
-				s = db.getConnection().createStatement();
-				ResultSet rs = s.executeQuery("select * FROM places WHERE id=" + id);
-				while (rs.next()) {
-					p = new Place();
-					p.setId(rs.getInt("id"));
-					p.setName(rs.getString("name"));
-					String str = rs.getString("alt_names");
-					if (!StringUtils.isEmpty(str)) {
-						for (String ss : str.split("~")) {
-							String sss[] = ss.split(":");
-							p.addAltName(sss[1], sss[2]);
-						}
-
+	/**
+	 * Reads for one query against a remote store, made before matching starts:
+	 * the posting lists of every level's name tokens in one lookup, then the candidate places and their ancestors
+	 * in batches of PREFETCH_BATCH_SIZE per generation, so matching level by level reads from the store's caches instead of the network.
+	 */
+	private class QueryPrefetch {
+		private final Map<String, List<Integer>> tokenIds;
+		private final Set<String> lookedUp = new HashSet<>();
+
+		QueryPrefetch(StandardizeContext ctx, List<List<String>> levelWords) {
+			for (List<String> words : levelWords) {
+				for (String[] nameType : getNameTypeTokens(words, ctx.tokenBuffer)) {
+					if (nameType[0] != null) {
+						lookedUp.add(nameType[0]);
 					}
-					p.setLocatedInId(rs.getInt("located_in_id"));
-					String alii = rs.getString("also_located_in_ids");
-					if (!alii.isEmpty()) {
-						int a[] = new int[alii.split("~").length];
-						int x = 0;
-						for (String xx : alii.split("~")) {
-							a[x++] = new Integer(xx);
-						}
-						p.setAlsoLocatedInIds(a);
+				}
+			}
+			tokenIds = lookupWords(lookedUp);
+			if (queryPrefetchMaxPlaces > 0) {
+				prefetchPlaces(ctx);
+			}
+		}
 
+		// the places fetched count against the call's budget, and the round trips stop when it runs out
+		private void prefetchPlaces(StandardizeContext ctx) {
+			// the smallest lists first: a common word alone could take the whole allowance
+			List<List<Integer>> lists = new ArrayList<>(tokenIds.values());
+			lists.sort(Comparator.comparingInt(List::size));
+			Set<Integer> seen = new HashSet<>();
+			List<Integer> batch = new ArrayList<>();
+			for (List<Integer> ids : lists) {
+				if (seen.size() + ids.size() > queryPrefetchMaxPlaces) {
+					break;
+				}
+				for (int id : ids) {
+					if (seen.add(id)) {
+						batch.add(id);
 					}
-					p.setCountryId(rs.getInt("country_id"));
-					p.setLatitude(rs.getDouble("latitude"));
-					p.setLongitude(rs.getDouble("longitude"));
-					p.setLevel(rs.getInt("level"));
-					str = rs.getString("types");
-					if (!StringUtils.isEmpty(str)) {
-						p.setTypes(str.split("~"));
-					}
-
-					return p;
 				}
-				return null;
 			}
-			catch (Exception e) {
-			}
-			finally {
-				try {
-					s.close();
+			// one round trip per PREFETCH_BATCH_SIZE places of each generation of ancestors, keeping the IN lists as short as warmUp's;
+			// places in the hierarchy's tree don't need theirs
+			for (int generation = 0; generation <= MAX_LEVELS && !batch.isEmpty() && !ctx.isOverBudget(); generation++) {
+				List<Integer> parents = new ArrayList<>();
+				for (int i = 0; i < batch.size() && !ctx.isOverBudget(); i += JdbcStore.PREFETCH_BATCH_SIZE) {
+					List<Integer> chunk = batch.subList(i, Math.min(batch.size(), i + JdbcStore.PREFETCH_BATCH_SIZE));
+					ctx.countLookups(0, chunk.size());
+					StoreLookupEvent event = StoreLookupEvent.start();
+					Map<Integer, Place> places = placeStore.getPlaces(chunk);
+					event.finish(placeStore.getName(), "places", chunk.size(), places.size());
+					for (Place p : places.values()) {
+						if (hierarchy != null && hierarchy.isTreeOnly(p.getId())) {
+							continue;
+						}
+						if (p.getLocatedInId() > 0 && seen.add(p.getLocatedInId())) {
+							parents.add(p.getLocatedInId());
+						}
+						for (int id : p.getAlsoLocatedInIds()) {
+							if (seen.add(id)) {
+								parents.add(id);
+							}
+						}
+					}
 				}
-				catch (SQLException e) {
+				batch = parents;
+			}
+		}
+
+		/**
+		 * @return posting lists of words; words a level split introduced since the prefetch are looked up now
+		 */
+		Map<String, List<Integer>> lookup(Collection<String> words) {
+			List<String> missing = new ArrayList<>();
+			for (String word : words) {
+				if (word != null && !lookedUp.contains(word)) {
+					missing.add(word);
 				}
 			}
-		} else if (placeIndex != null) {
-			p = placeIndex.get(id);
-		} else {
-			try {
-				p = placeCache.get(id);
+			if (!missing.isEmpty()) {
+				tokenIds.putAll(lookupWords(missing));
+				lookedUp.addAll(missing);
 			}
-			catch (ExecutionException e) {
-				logger.severe("Error loading place: " + e);
+			Map<String, List<Integer>> result = new HashMap<>();
+			for (String word : words) {
+				List<Integer> ids = word == null ? null : tokenIds.get(word);
+				if (ids != null) {
+					result.put(word, ids);
+				}
 			}
+			return result;
 		}
+	}
+
+	public Place getPlace(int id) {
+		Place p = placeStore.getPlace(id);
 		if (p == null) {
 			logger.severe("Place not found: " + id);
 		}
 		return p;
 	}
 
+	private ChildIndex getChildIndex() {
+		ChildIndex index = childIndex;
+		if (index == null && browseStore != null) {
+			index = readDatabaseChildIndex();
+		}
+		if (index == null) {
+			throw new IllegalStateException("No children index; rebuild places.db to browse the hierarchy");
+		}
+		return index;
+	}
+
+	// the browse index only; the matcher keeps reading parents from the database
+	private synchronized ChildIndex readDatabaseChildIndex() {
+		ChildIndex index = childIndex;
+		if (index != null) {
+			return index;
+		}
+		long edits = browseEdits;
+		PlaceLinks links = new PlaceLinks();
+		try {
+			browseStore.forEachPlaceLinks(links::add);
+		}
+		catch (SQLException e) {
+			throw new IllegalStateException("Error reading place links: " + e, e);
+		}
+		index = ChildIndex.build(links, Hierarchy.build(links));
+		// if edits came in while reading, the index may already be stale; use it for this call only
+		if (browseEdits == edits) {
+			childIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * @return ids of the places located in id, or also located in it; in hierarchy order
+	 */
+	public int[] getChildren(int id) {
+		return getChildIndex().getChildren(id);
+	}
+
+	/**
+	 * @return ids of the places below id, breadth first, down to maxDepth levels (1 = children only)
+	 */
+	public int[] getDescendants(int id, int maxDepth) {
+		return getChildIndex().getDescendants(id, maxDepth);
+	}
+
+	/**
+	 * @return number of places located in id at any depth through located-in links only; getChildren and getDescendants
+	 * also follow also-located-in links, so this can be less than the number of places getDescendants returns
+	 */
+	public int getDescendantCount(int id) {
+		return getChildIndex().getDescendantCount(id);
+	}
+
+	/**
+	 * @return true once the indexes are open and, in database mode, the caches have been prefetched;
+	 * queries are answered before then, only more slowly
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	public PlaceStore getPlaceStore() {
+		return placeStore;
+	}
+
+	public WordStore getWordStore() {
+		return wordStore;
+	}
+
 	public String generatePlaceName(List<String> words) {
 		int len = words.size() - 1;
 
@@ -615,28 +1242,46 @@ public class Standardizer {
 	}
 
 	private boolean checkAncestorMatch(int id, Collection<Integer> ids) {
-		Place p = getPlace(id);
-		int locatedInId = p.getLocatedInId();
+		// both links are read before recursing, while the store may still have this place at hand
+		int locatedInId = placeStore.getLocatedInId(id);
+		int[] alsoLocatedInIds = placeStore.getAlsoLocatedInIds(id);
 		if (locatedInId > 0) {
 			if (ids.contains(locatedInId) || checkAncestorMatch(locatedInId, ids)) {
 				return true;
 			}
 		}
-		if (p.getAlsoLocatedInIds() != null) {
-			for (int alii : p.getAlsoLocatedInIds()) {
-				if (ids.contains(alii) || checkAncestorMatch(alii, ids)) {
-					return true;
-				}
+		for (int alii : alsoLocatedInIds) {
+			if (ids.contains(alii) || checkAncestorMatch(alii, ids)) {
+				return true;
 			}
 		}
 		return false;
 	}
 
-	private List<Integer> filterSubplaceMatches(List<Integer> children, List<Integer> parents) {
+	// stops early, returning the children checked so far, when the call runs out of budget
+	private List<Integer> filterSubplaceMatches(StandardizeContext ctx, List<Integer> children, List<Integer> parents) {
 		List<Integer> result = new ArrayList<Integer>();
 
+		AncestorMatcher matcher = new AncestorMatcher(parents);
+		if (matcher.intervals != null && children instanceof PostingListMap.Ids &&
+				((PostingListMap.Ids) children).getHierarchy() == hierarchy) {
+			// merge the encoded ranks with the parents' subtrees; only places under them or off the tree are decoded
+			for (int rank : ((PostingListMap.Ids) children).filterRanks(matcher.intervals)) {
+				if (ctx.isOverBudget()) {
+					break;
+				}
+				int child = hierarchy.getId(rank);
+				if (matcher.matches(child)) {
+					result.add(child);
+				}
+			}
+			return result;
+		}
 		for (int child : children) {
-			if (checkAncestorMatch(child, parents)) {
+			if (ctx.isOverBudget()) {
+				break;
+			}
+			if (matcher.matches(child)) {
 				result.add(child);
 			}
 		}
@@ -644,24 +1289,45 @@ public class Standardizer {
 		return result;
 	}
 
-	private List<Integer> filterTypeMatches(List<Integer> ids, String typeToken) {
+	/**
+	 * Finds places with an ancestor in a fixed set.
+	 * With a hierarchy, places are checked against the subtree intervals of the set: a merge join when they are
+	 * checked in DFS order, as posting lists are. Only places with an also-located-in link on their chain walk their ancestors.
+	 */
+	private class AncestorMatcher {
+		private final Collection<Integer> ancestors;
+		private final Hierarchy.Intervals intervals;
+
+		AncestorMatcher(Collection<Integer> ancestors) {
+			this.ancestors = hierarchy != null && ancestors.size() > 8 ? new HashSet<>(ancestors) : ancestors;
+			this.intervals = hierarchy != null ? hierarchy.descendantIntervals(ancestors) : null;
+		}
+
+		boolean matches(int id) {
+			if (intervals != null && hierarchy.isTreeOnly(id)) {
+				return intervals.contains(hierarchy.getRank(id));
+			}
+			return checkAncestorMatch(id, ancestors);
+		}
+
+		/**
+		 * @return true if the intervals alone show id has an ancestor in the set; reads no places
+		 */
+		boolean matchesInTree(int id) {
+			return intervals != null && hierarchy.isTreeOnly(id) && intervals.contains(hierarchy.getRank(id));
+		}
+	}
+
+	private List<Integer> filterTypeMatches(StandardizeContext ctx, List<Integer> ids, String typeToken) {
 		List<Integer> result = new ArrayList<Integer>();
 
 		for (int id : ids) {
-			Place p = getPlace(id);
-			String normalizedName = pn.normalize(p.getName());
-			// does primary name contain the type words?
-			if (normalizedName.indexOf(typeToken) >= 0) {
+			if (ctx.isOverBudget()) {
+				break;
+			}
+			// does primary name or one of the types contain the type words?
+			if (placeStore.normalizedNameContains(id, typeToken) || placeStore.normalizedTypeContains(id, typeToken)) {
 				result.add(id);
-			} else if (p.getTypes() != null) {
-				for (String type : p.getTypes()) {
-					String normalizedType = pn.normalize(type);
-					// does one of the types contain the type words?
-					if (normalizedType.indexOf(typeToken) >= 0) {
-						result.add(id);
-						break;
-					}
-				}
 			}
 		}
 
@@ -672,43 +1338,80 @@ public class Standardizer {
 		if (pId == parentId) {
 			return true;
 		}
-		Place p = getPlace(pId);
-		if (p.getLocatedInId() > 0 && isLocatedIn(p.getLocatedInId(), parentId)) {
+		if (hierarchy != null && hierarchy.isTreeOnly(pId)) {
+			return hierarchy.isTreeDescendant(pId, parentId);
+		}
+		int locatedInId = placeStore.getLocatedInId(pId);
+		int[] alsoLocatedInIds = placeStore.getAlsoLocatedInIds(pId);
+		if (locatedInId > 0 && isLocatedIn(locatedInId, parentId)) {
 			return true;
 		}
-		if (p.getAlsoLocatedInIds() != null) {
-			for (int id : p.getAlsoLocatedInIds()) {
-				if (isLocatedIn(id, parentId)) {
-					return true;
-				}
+		for (int id : alsoLocatedInIds) {
+			if (isLocatedIn(id, parentId)) {
+				return true;
 			}
 		}
 		return false;
 	}
 
 	// remove non top-level places that are outside of the default country
-	private List<Integer> filterDefaultCountry(List<Integer> ids, String defaultCountry) {
+	private List<Integer> filterDefaultCountry(StandardizeContext ctx, List<Integer> ids, StandardizeOptions options) {
+		int countryId = options.getDefaultCountryId();
+		// the country's rank interval, when the options were compiled against this index
+		boolean hasInterval = hierarchy != null && options.getCountryHierarchy() == hierarchy;
 		List<Integer> matchingIds = new ArrayList<Integer>();
-		Place country = standardize(defaultCountry);
-		if (country != null) {
-			for (Integer id : ids) {
-				Place p = getPlace(id);
-				// allow top-level places or places in the country or places also-located-in the country
-				// the last condition allows "defaultCountry" to be a state or county or whatever level you want
-				if (p.getLevel() == TOP_LEVEL || p.getCountryId() == country.getId() || isLocatedIn(id, country.getId())) {
+		for (Integer id : ids) {
+			if (ctx.isOverBudget()) {
+				break;
+			}
+			if (hasInterval && hierarchy.isTreeOnly(id)) {
+				int rank = hierarchy.getRank(id);
+				if (rank >= options.getCountryRank() && rank < options.getCountryEnd()) {
 					matchingIds.add(id);
+					continue;
 				}
 			}
+			// allow top-level places or places in the country or places also-located-in the country
+			// the last condition allows "defaultCountry" to be a state or county or whatever level you want
+			if (placeStore.getLevel(id) == TOP_LEVEL || placeStore.getCountryId(id) == countryId ||
+					(!hasInterval || !hierarchy.isTreeOnly(id)) && isLocatedIn(id, countryId)) {
+				matchingIds.add(id);
+			}
 		}
 		return matchingIds;
 	}
 
-	private double scoreMatch(String nameToken, Place p) {
-		String normalizedName = pn.normalize(p.getName());
-		boolean isPrimaryNameMatch = normalizedName.indexOf(nameToken) >= 0;
-		int level = p.getLevel();
-		int countryId = p.getCountryId();
-		Double[] weights;
+	/**
+	 * Resolve defaultCountry to a place once, so the options can be reused for any number of calls and threads
+	 * @param defaultCountry place name restricting ambiguous matches; may be a state or county as well; null for none
+	 */
+	public StandardizeOptions compileOptions(String defaultCountry, Mode mode, int numResults) {
+		int countryId = 0;
+		if (defaultCountry != null && defaultCountry.length() > 0) {
+			List<PlaceScore> countries = standardize(new StandardizeContext(), defaultCountry);
+			if (countries.size() > 0) {
+				countryId = countries.get(0).getPlace().getId();
+			}
+		}
+		if (countryId > 0 && hierarchy != null && hierarchy.getRank(countryId) != Hierarchy.MISSING) {
+			return new StandardizeOptions(defaultCountry, countryId, mode, numResults,
+					hierarchy, hierarchy.getRank(countryId), hierarchy.getEnd(countryId));
+		}
+		return new StandardizeOptions(defaultCountry, countryId, mode, numResults);
+	}
+
+	private StandardizeOptions resolveOptions(StandardizeContext ctx) {
+		StandardizeOptions options = ctx.getOptions();
+		if (!options.isResolved()) {
+			options = compileOptions(options.getDefaultCountry(), options.getMode(), options.getNumResults());
+			ctx.setOptions(options);
+		}
+		return options;
+	}
+
+	// query-independent part of the score: level weight for the country size + 1/name length
+	private double computeStaticScore(int level, int countryId, String name) {
+		double[] weights;
 
 		if (largeCountries.contains(countryId)) {
 			weights = largeCountryLevelWeights;
@@ -718,13 +1421,24 @@ public class Standardizer {
 			weights = smallCountryLevelWeights;
 		}
 
-		double score = weights[Math.min(MAX_LEVELS, level) - 1];
+		return weights[Math.min(MAX_LEVELS, level) - 1] + 1.0 / name.length();
+	}
 
-		if (isPrimaryNameMatch) {
-			score += primaryMatchWeight;
+	private double scoreMatch(String nameToken, int id) {
+		StaticScores scores = staticScores;
+		double score = scores.get(id);
+		if (score == 0.0) {
+			// not scored yet (database mode); one read for the three fields, and kept for the next match
+			Place p = placeStore.getPlace(id);
+			if (p != null) {
+				score = computeStaticScore(p.getLevel(), p.getCountryId(), p.getName());
+				scores.set(id, score);
+			}
 		}
 
-		score += 1.0 / p.getName().length();
+		if (placeStore.normalizedNameContains(id, nameToken)) {
+			score += primaryMatchWeight;
+		}
 		return score;
 	}
 
@@ -736,41 +1450,59 @@ public class Standardizer {
 		return typeWords.contains(word);
 	}
 
-	// catenate all of the words together into one token, with ending type words in a second token
-	private String[] getNameTypeToken(List<String> words, int wordsToSkip) {
-		StringBuilder buf = new StringBuilder();
-		String[] result = new String[2];
-		result[0] = null; // name token
-		result[1] = null; // type token (optional)
-		boolean foundNameWord = false;
-		for (int i = words.size() - 1; i >= wordsToSkip; i--) {
+	/**
+	 * Catenate all of the words together into one token, with ending type words in a second token.
+	 * Built in one pass for every suffix of words: result[wordsToSkip] holds the tokens for words[wordsToSkip..]
+	 */
+	private String[][] getNameTypeTokens(List<String> words, StringBuilder buf) {
+		int n = words.size();
+		String[][] result = new String[n][];
+		if (n == 0) {
+			return result;
+		}
+
+		// catenate the abbreviation-expanded words once; the tokens are substrings of it
+		buf.setLength(0);
+		int[] offsets = new int[n + 1];
+		int lastNameWord = -1;
+		for (int i = 0; i < n; i++) {
+			offsets[i] = buf.length();
 			String word = words.get(i);
-			if (word.length() > 0) {
-				// skip everything before or or now
-				if (i > wordsToSkip && buf.length() > 0 && "or".equals(word) || "now".equals(word)) {
-					break;
-				}
-				// expand abbreviations only if there is >1 word in the phrase
-				// keeps from expanding places like No, Niigata, Japan into North
-				if (words.size() - wordsToSkip > 1) {
-					String expansion = abbreviations.get(word);
-					if (expansion != null) {
-						word = expansion;
-					}
-				}
-				if (!typeWords.contains(word)) {
-					// type words after a name word go into the type token position
-					if (!foundNameWord && buf.length() > 0) {
-						result[1] = buf.toString();
-						buf.setLength(0);
-					}
-					foundNameWord = true;
-				}
-				buf.insert(0, word);
+			String expansion = abbreviations.get(word);
+			if (expansion != null) {
+				word = expansion;
+			}
+			if (word.length() > 0 && !typeWords.contains(word)) {
+				lastNameWord = i;
 			}
+			buf.append(word);
 		}
-		if (buf.length() > 0) {
-			result[0] = buf.toString();
+		offsets[n] = buf.length();
+		String all = buf.toString();
+
+		// a single word is never expanded
+		String lastWord = words.get(n - 1);
+		result[n - 1] = new String[]{lastWord.length() > 0 && !"now".equals(lastWord) ? lastWord : null, null};
+
+		// everything left of the right-most "now", or of an "or" that has words to its right, is ignored
+		int breakPos = "now".equals(lastWord) ? n - 1 : -1;
+		boolean textToRight = false;
+		for (int k = n - 2; k >= 0; k--) {
+			String right = words.get(k + 1);
+			if (breakPos < 0 && ("now".equals(right) || (textToRight && "or".equals(right)))) {
+				breakPos = k + 1;
+			}
+			textToRight |= right.length() > 0;
+			int lo = breakPos >= 0 ? breakPos + 1 : ("now".equals(words.get(k)) ? k + 1 : k);
+
+			String[] nameType = new String[2];
+			if (lastNameWord >= lo) {
+				nameType[0] = offsets[lo] < offsets[lastNameWord + 1] ? all.substring(offsets[lo], offsets[lastNameWord + 1]) : null;
+				nameType[1] = offsets[lastNameWord + 1] < offsets[n] ? all.substring(offsets[lastNameWord + 1], offsets[n]) : null;
+			} else if (lo < n && offsets[lo] < offsets[n]) {
+				nameType[0] = all.substring(offsets[lo], offsets[n]);
+			}
+			result[k] = nameType;
 		}
 		return result;
 	}
@@ -794,22 +1526,32 @@ public class Standardizer {
 	}
 
 	// once you've matched a country or a US state, you can't skip over it
-	private boolean isSkippable(Collection<Integer> ids) {
+	// out of budget, the places left unchecked count as skippable
+	private boolean isSkippable(StandardizeContext ctx, Collection<Integer> ids) {
 		for (int id : ids) {
-			Place p = getPlace(id);
-			if (p.getLevel() == 1 ||
-					(p.getLevel() == 2 && p.getCountryId() == USA_ID)) {
+			if (ctx.isOverBudget()) {
+				break;
+			}
+			int level = placeStore.getLevel(id);
+			if (level == 1 ||
+					(level == 2 && placeStore.getCountryId(id) == USA_ID)) {
 				return false;
 			}
 		}
 		return true;
 	}
 
-	private Collection<Integer> removeChildIds(Collection<Integer> currentIds) {
+	Collection<Integer> removeChildIds(Collection<Integer> currentIds) {
+		return removeChildIds(null, currentIds);
+	}
+
+	// with ctx, a call that runs out of budget only removes the children the hierarchy's intervals show
+	private Collection<Integer> removeChildIds(StandardizeContext ctx, Collection<Integer> currentIds) {
 		if (currentIds != null) {
 			List<Integer> ids = new ArrayList<Integer>();
+			AncestorMatcher matcher = new AncestorMatcher(currentIds);
 			for (int id : currentIds) {
-				if (!checkAncestorMatch(id, currentIds)) {
+				if (ctx != null && ctx.isOverBudget() ? !matcher.matchesInTree(id) : !matcher.matches(id)) {
 					ids.add(id);
 				}
 			}
@@ -819,7 +1561,83 @@ public class Standardizer {
 	}
 
 	public List<PlaceScore> standardize(String text, String defaultCountry, Mode mode, int numResults) {
+		return standardize(new StandardizeContext(errorHandler, defaultCountry, mode, numResults), text);
+	}
+
+	/**
+	 * Standardize text with options from compileOptions, using the error handler set on the standardizer
+	 */
+	public List<PlaceScore> standardize(StandardizeOptions options, String text) {
+		return standardize(new StandardizeContext(errorHandler, options), text);
+	}
+
+	/**
+	 * Standardize text using the error handler and options in ctx.
+	 * Safe to call from any number of threads at once, as long as each thread uses its own context.
+	 * Slow calls are reported to Java Flight Recorder as StandardizeEvents.
+	 */
+	public List<PlaceScore> standardize(StandardizeContext ctx, String text) {
+		StandardizeEvent event = new StandardizeEvent();
+		event.begin();
+		List<PlaceScore> results = match(ctx, text);
+		event.end();
+		if (event.shouldCommit()) {
+			event.inputLength = text.length();
+			event.levels = ctx.levels;
+			event.lookups = ctx.lookups;
+			event.candidates = ctx.candidates;
+			event.results = results.size();
+			event.mode = ctx.getMode().name();
+			event.backend = placeStore.getName();
+			event.resultSource = ctx.resultSource;
+			event.degraded = ctx.isDegraded();
+			event.commit();
+		}
+		return results;
+	}
+
+	private List<PlaceScore> match(StandardizeContext ctx, String text) {
+		ErrorHandler errorHandler = ctx.getErrorHandler();
+		StandardizeOptions options = ctx.getOptions();
+		Mode mode = options.getMode();
+		int numResults = options.getNumResults();
+		ctx.startBudget(options.getBudgetMillis() >= 0 ? options.getBudgetMillis() : queryBudgetMillis,
+				options.getMaxLookups() >= 0 ? options.getMaxLookups() : queryBudgetLookups,
+				options.getMaxCandidates() >= 0 ? options.getMaxCandidates() : queryBudgetCandidates);
+
+		// known texts map to a single place; the mapping doesn't know about default countries, alternatives or
+		// whether every level matched, and like a shared result it reports no errors
+		ExactMatchIndex exact = exactMatches;
+		if (exact != null && numResults == 1 && options.getDefaultCountry() == null && mode == Mode.BEST && errorHandler == null) {
+			int id = exact.lookup(text);
+			Place p = id > 0 ? getPlace(id) : null;
+			if (p != null) {
+				List<PlaceScore> results = new ArrayList<>(1);
+				results.add(new PlaceScore(p, scoreMatch(placeStore.getNormalizedName(id), id)));
+				ctx.resultSource = RESULT_EXACT;
+				return results;
+			}
+		}
+
 		List<List<String>> levelWords = pn.tokenize(text);
+		ctx.levels = levelWords.size();
+		// a hit reports no errors, so the shared results are only used without an error handler
+		SharedResultCache sharedResults = resultCache;
+		long resultKey = 0;
+		int resultEpoch = 0;
+		if (sharedResults != null && errorHandler == null && mode != Mode.NEW) {
+			resultKey = sharedResults.key(levelWords, options.getDefaultCountry(), mode, numResults);
+			// read before matching, so a clear while matching keeps these results out of the cache
+			resultEpoch = sharedResults.getEpoch();
+			List<PlaceScore> cached = getSharedResults(sharedResults, resultKey);
+			if (cached != null) {
+				ctx.resultSource = RESULT_SHARED;
+				return cached;
+			}
+		} else {
+			sharedResults = null;
+		}
+		QueryPrefetch prefetch = placeStore.isRemote() ? new QueryPrefetch(ctx, levelWords) : null;
 		List<Integer> currentIds = null;
 		List<Integer> previousIds = null;
 		String currentNameToken = null;
@@ -827,22 +1645,44 @@ public class Standardizer {
 		int lastFoundLevel = -1;
 		// log only the first error per place -- skipping words can result in multiple errors, but we want to log the whole phrase
 		boolean errorLogged = false;
-		TreeMultimap<Integer, Place> levelMatches = TreeMultimap.create();
 		int rlevel = 0;
+		// the level being matched when the budget ran out
+		int stoppedLevel = -1;
 		for (int level = levelWords.size() - 1; level >= 0; level--) {
+			// out of budget: settle for the levels matched so far
+			if (ctx.isOverBudget()) {
+				stoppedLevel = level;
+				break;
+			}
 			List<String> words = levelWords.get(level);
 			// if all words don't match, back off and insert left-hand words as a new level
 			// (for people who don't use commas)
 			int wordsToSkip = 0;
 			List<Integer> ids = null;
 			String[] nameType = null;
+			String[][] nameTypes = getNameTypeTokens(words, ctx.tokenBuffer);
+			List<String> nameTokens = new ArrayList<>(nameTypes.length);
+			for (String[] suffix : nameTypes) {
+				nameTokens.add(suffix[0]);
+			}
+			// lookup all name tokens at once
+			Map<String, List<Integer>> tokenIds = prefetch != null ? prefetch.lookup(nameTokens) : lookupWords(nameTokens);
+			int candidates = 0;
+			for (List<Integer> tokenMatches : tokenIds.values()) {
+				candidates += tokenMatches.size();
+			}
+			ctx.countLookups(nameTokens.size(), candidates);
+			// filtering this many candidates against the parents would exceed the budget
+			if (ctx.isOverBudget()) {
+				stoppedLevel = level;
+				break;
+			}
 			while (wordsToSkip < words.size()) {
-				nameType = getNameTypeToken(words, wordsToSkip);
+				nameType = nameTypes[wordsToSkip];
 
-				// lookup name token
-				ids = lookupWord(nameType[0]);
+				ids = nameType[0] == null ? null : tokenIds.get(nameType[0]);
 				if (ids != null) {
-					if ((nameType[0].matches("de|la") && words.size()>1)) {
+					if (words.size() > 1 && SKIPPED_SINGLE_WORDS.contains(nameType[0])) {
 						ids = null;
 					} else {
 						break;
@@ -869,43 +1709,49 @@ public class Standardizer {
 			// didn't find any matches; log and ignore
 			if (ids == null) {
 				if (errorHandler != null && !errorLogged && containsNonNoiseWords(words)) {
-					errorHandler.tokenNotFound(text, levelWords, level, removeChildIds(currentIds));
+					errorHandler.handle(ErrorEvent.tokenNotFound(this, text, levelWords, level, currentIds));
 					errorLogged = true;
 				}
 			} else {
 				// if we found previous matches, filter subplaces
 				boolean ignoreTypeToken = false;
 				if (currentIds != null) {
-					List<Integer> matchingIds = filterSubplaceMatches(ids, currentIds);
+					List<Integer> matchingIds = filterSubplaceMatches(ctx, ids, currentIds);
 					// didn't find any children, try skipping over the previous level
-					if (matchingIds.size() == 0 && isSkippable(currentIds)) {
+					if (matchingIds.size() == 0 && isSkippable(ctx, currentIds) && !ctx.isDegraded()) {
 						// try attaching to the grandparent level if there is one
 						if (previousIds != null && previousIds.size() > 0) {
-							matchingIds = filterSubplaceMatches(ids, previousIds);
+							matchingIds = filterSubplaceMatches(ctx, ids, previousIds);
 							if (matchingIds.size() > 0) {
 								currentIds = previousIds;
 								if (errorHandler != null && !errorLogged) {
-									errorHandler.skippingParentLevel(text, levelWords, level, removeChildIds(matchingIds));
+									errorHandler.handle(ErrorEvent.skippingParentLevel(this, text, levelWords, level, matchingIds));
 									errorLogged = true;
 								}
 							}
 						}
 						// else if there is no grandparent level and we matched non-skippable places, go with what we just found
-						else if (!isSkippable(ids)) {
+						else if (!isSkippable(ctx, ids) && !ctx.isDegraded()) {
 							matchingIds = ids;
 							currentIds = null;
 							if (errorHandler != null && !errorLogged) {
-								errorHandler.skippingParentLevel(text, levelWords, level, removeChildIds(matchingIds));
+								errorHandler.handle(ErrorEvent.skippingParentLevel(this, text, levelWords, level, matchingIds));
 								errorLogged = true;
 							}
 						}
 					}
 
+					// a level only partly checked isn't used
+					if (ctx.isDegraded()) {
+						stoppedLevel = level;
+						break;
+					}
+
 					// still didn't find any children; log and ignore
 					if (matchingIds.size() == 0) {
 						ignoreTypeToken = true; // no sense matching the type if we couldn't match the name
 						if (errorHandler != null && !errorLogged && containsNonNoiseWords(words)) {
-							errorHandler.tokenNotFound(text, levelWords, level, removeChildIds(currentIds));
+							errorHandler.handle(ErrorEvent.tokenNotFound(this, text, levelWords, level, currentIds));
 							errorLogged = true;
 						}
 						ids = currentIds;
@@ -916,8 +1762,15 @@ public class Standardizer {
 					}
 				} else {
 					// if we have multiple matches and a default country, filter non-top-level places outside the default country
-					if (ids.size() > 1 && defaultCountry != null && defaultCountry.length() > 0) {
-						List<Integer> matchingIds = filterDefaultCountry(ids, defaultCountry);
+					if (ids.size() > 1 && options.getDefaultCountry() != null) {
+						options = resolveOptions(ctx);
+					}
+					if (ids.size() > 1 && options.getDefaultCountryId() > 0) {
+						List<Integer> matchingIds = filterDefaultCountry(ctx, ids, options);
+						if (ctx.isDegraded()) {
+							stoppedLevel = level;
+							break;
+						}
 						if (matchingIds.size() > 0) {
 							ids = matchingIds;
 						}
@@ -927,11 +1780,15 @@ public class Standardizer {
 
 				// if we still have multiple matches, filter on type
 				if (ids.size() > 1 && nameType[1] != null && !ignoreTypeToken) {
-					List<Integer> matchingIds = filterTypeMatches(ids, nameType[1]);
+					List<Integer> matchingIds = filterTypeMatches(ctx, ids, nameType[1]);
+					if (ctx.isDegraded()) {
+						stoppedLevel = level;
+						break;
+					}
 					// didn't find a type match; log and ignore
 					if (matchingIds.size() == 0) {
 						if (errorHandler != null && !errorLogged) {
-							errorHandler.typeNotFound(text, levelWords, level, removeChildIds(ids));
+							errorHandler.handle(ErrorEvent.typeNotFound(this, text, levelWords, level, ids));
 							errorLogged = true;
 						}
 					} else {
@@ -939,11 +1796,6 @@ public class Standardizer {
 					}
 				}
 
-				for (Integer id : ids) {
-					Place p = getPlace(id);
-					levelMatches.put(p.getLevel(), p);
-				}
-
 				previousIds = currentIds;
 				currentIds = ids;
 				currentNameToken = nameType[0];
@@ -951,57 +1803,51 @@ public class Standardizer {
 		}
 
 		List<PlaceScore> results = new ArrayList<>();
-		if (levelMatches.size()>0) {
-			for (int lvl: levelMatches.keySet()){
-				levelMatches.get(lvl);
-			}
-		}
 
 		// if we have no matches, return empty
 		if (currentIds == null) {
 			// log this even if we've logged another error earlier
-			if (errorHandler != null && containsNonNoiseLevels(levelWords)) {
-				errorHandler.placeNotFound(text, levelWords);
+			if (errorHandler != null && ctx.isDegraded()) {
+				errorHandler.handle(ErrorEvent.budgetExceeded(this, text, levelWords, stoppedLevel));
+			} else if (errorHandler != null && containsNonNoiseLevels(levelWords)) {
+				errorHandler.handle(ErrorEvent.placeNotFound(this, text, levelWords));
 			}
 		} else if (mode == mode.REQUIRED && lastFoundLevel != 0) {
 			// don't return any results if we didn't match the last level in this mode
 		} else {
 			// remove children if we have the parents
 			if (currentIds.size() > 1) {
-				currentIds = (List<Integer>) removeChildIds(currentIds);
+				currentIds = (List<Integer>) removeChildIds(ctx, currentIds);
 			}
 
 			// if we have still have multiple matches, score them and return the highest-scoring
 			if (currentIds.size() > 1) {
+				// keep only the highest-scoring results; always rank at least one for the ambiguous callback
+				TopK topK = new TopK(Math.max(numResults, 1));
 				for (int id : currentIds) {
-					Place p = getPlace(id);
-					results.add(new PlaceScore(p, scoreMatch(currentNameToken, p)));
+					// out of budget, the rest are ranked by their precomputed static score, which reads no place
+					topK.offer(id, ctx.isOverBudget() ? staticScores.get(id) : scoreMatch(currentNameToken, id));
 				}
-				Collections.sort(results, (ps1, ps2) -> {
-					// make sort order deterministic
-					if (ps2.getScore() == ps1.getScore()) {
-						return ps1.getPlace().getId() < ps2.getPlace().getId() ? -1 : 1;
-					}
-					return Double.compare(ps2.getScore(), ps1.getScore());
-				});
-
-				// remove lowest-scoring results
-				while (results.size() > numResults) {
-					results.remove(results.size() - 1);
+				int[] topIds = new int[topK.size()];
+				double[] topScores = new double[topK.size()];
+				topK.drain(topIds, topScores);
+				for (int i = 0; i < topIds.length && i < numResults; i++) {
+					results.add(new PlaceScore(getPlace(topIds[i]), topScores[i]));
 				}
 
 				if (errorHandler != null && !errorLogged) {
-					errorHandler.ambiguous(text, levelWords, currentIds, results.get(0).getPlace());
+					errorHandler.handle(ErrorEvent.ambiguous(this, text, levelWords, currentIds, topIds[0]));
 					errorLogged = true;
 				}
 			} else if (currentIds.size() > 0) {
-				Place p = getPlace(currentIds.get(0));
-				results.add(new PlaceScore(p, scoreMatch(currentNameToken, p)));
+				int id = currentIds.get(0);
+				results.add(new PlaceScore(getPlace(id), scoreMatch(currentNameToken, id)));
 			}
 		}
 
-		// in NEW mode, return "next-to-last-level-found, best match" if we didn't match the last level
-		if (results.size() > 0 && mode == Mode.NEW && lastFoundLevel > 0) {
+		// in NEW mode, return "next-to-last-level-found, best match" if we didn't match the last level;
+		// not when the budget ran out, since the next level may well exist but wasn't looked at
+		if (results.size() > 0 && mode == Mode.NEW && lastFoundLevel > 0 && !ctx.isDegraded()) {
 			Place p = new Place();
 			//p.setStandardizer(this);
 			p.setName(generatePlaceName(levelWords.get(lastFoundLevel - 1)));
@@ -1010,6 +1856,13 @@ public class Standardizer {
 			results.add(new PlaceScore(p, 0));
 		}
 
+		if (ctx.isDegraded()) {
+			for (PlaceScore ps : results) {
+				ps.degraded = true;
+			}
+		} else if (sharedResults != null) {
+			putSharedResults(sharedResults, resultKey, resultEpoch, results);
+		}
 		return results;
 	}
 
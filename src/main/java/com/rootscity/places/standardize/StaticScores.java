@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Query-independent part of each place's match score (level weight for its country size + 1/name length),
+ * indexed by place id. A score of 0 means the place hasn't been scored; real scores are always positive.
+ */
+class StaticScores {
+	private volatile double[] scores;
+
+	StaticScores() {
+		this(new double[0]);
+	}
+
+	private StaticScores(double[] scores) {
+		this.scores = scores;
+	}
+
+	double get(int id) {
+		double[] current = scores;
+		return id < current.length ? current[id] : 0.0;
+	}
+
+	/**
+	 * Called from matching threads in database mode, where places are scored as they are first matched.
+	 * Only growing the array takes the lock. A score written into an array that a concurrent grow has already
+	 * copied is lost, and so is one another thread doesn't see yet; either way the place reads as unscored
+	 * and is scored again, which gives the same value.
+	 */
+	void set(int id, double score) {
+		double[] current = scores;
+		if (id < current.length) {
+			current[id] = score;
+			return;
+		}
+		synchronized (this) {
+			current = scores;
+			if (id >= current.length) {
+				current = Arrays.copyOf(current, Math.max(id + 1, current.length * 3 / 2));
+			}
+			current[id] = score;
+			scores = current;
+		}
+	}
+
+	byte[] toBytes() {
+		double[] current = scores;
+		ByteBuffer buf = ByteBuffer.allocate(4 + 8 * current.length);
+		buf.putInt(current.length);
+		buf.asDoubleBuffer().put(current);
+		return buf.array();
+	}
+
+	static StaticScores fromBytes(byte[] data) {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		double[] scores = new double[buf.getInt()];
+		buf.asDoubleBuffer().get(scores);
+		return new StaticScores(scores);
+	}
+}
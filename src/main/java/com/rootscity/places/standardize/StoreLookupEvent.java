@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event for one read from a place or word store: a batch lookup by the standardizer,
+ * or a query JdbcStore makes for the keys that missed its cache.
+ */
+@Name("com.rootscity.places.StoreLookup")
+@Label("Place Store Lookup")
+@Category({"Places", "Standardizer"})
+@Description("A batch of places or words read from a backend")
+@Threshold("1 ms")
+@StackTrace(false)
+class StoreLookupEvent extends Event {
+	@Label("Backend")
+	String backend;
+
+	@Label("Operation")
+	String operation;
+
+	@Label("Keys")
+	int keys;
+
+	@Label("Found")
+	int found;
+
+	static StoreLookupEvent start() {
+		StoreLookupEvent event = new StoreLookupEvent();
+		event.begin();
+		return event;
+	}
+
+	void finish(String backend, String operation, int keys, int found) {
+		end();
+		if (shouldCommit()) {
+			this.backend = backend;
+			this.operation = operation;
+			this.keys = keys;
+			this.found = found;
+			commit();
+		}
+	}
+}
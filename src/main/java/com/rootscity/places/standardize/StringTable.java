@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of the low-cardinality strings carried by places (types, alt-name sources, sources).
+ * Places built from the tsv files and places deserialized from places.db intern these strings here,
+ * so every place with the same type or source shares one String object.
+ * This saves heap only; places.db still stores the strings inline in each serialized place.
+ */
+public class StringTable {
+	private static final StringTable sharedTable = new StringTable();
+
+	public static StringTable getInstance() {
+		return sharedTable;
+	}
+
+	private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+
+	StringTable() {
+	}
+
+	/**
+	 * @return the canonical instance of s (null stays null)
+	 */
+	public String intern(String s) {
+		if (s == null) {
+			return null;
+		}
+		String canonical = strings.putIfAbsent(s, s);
+		return canonical == null ? s : canonical;
+	}
+
+	/**
+	 * Replace every element of values with its canonical instance
+	 * @return values
+	 */
+	public String[] intern(String[] values) {
+		if (values != null) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = intern(values[i]);
+			}
+		}
+		return values;
+	}
+
+	public int size() {
+		return strings.size();
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Place store keeping the places most queries touch as decoded objects on the heap, in front of a cold store
+ * (typically the memory-mapped FlatPlaceStore).
+ * Places with level 1 and 2 are pinned at startup since nearly every ancestor walk ends in them, countries first and
+ * smaller places first within a level, as long as they fit in tieredStoreMaxBytes.
+ * Other places are admitted to a hot tier once they have been accessed tieredStoreAdmitCount times;
+ * consecutive reads of one place by a thread count as one access.
+ * The hot tier holds at most tieredStoreMaxBytes estimated bytes minus what the pinned places take, least recently used out first.
+ * Places that aren't admitted are read from the cold store on every access.
+ * Each heap entry keeps the normalized name and types with the place, so matching doesn't normalize them again on every read.
+ */
+public class TieredPlaceStore implements PlaceStore {
+	public static final int PINNED_MAX_LEVEL = 2;
+
+	private static Logger logger = Logger.getLogger("places.standardize");
+
+	private final PlaceStore cold;
+	private final Map<Integer, Entry> pinned = new HashMap<>();
+	private final Cache<Integer, Entry> hot;
+	private final FrequencySketch frequencies;
+	// the id each thread last counted an access to
+	private final ThreadLocal<int[]> lastCounted = ThreadLocal.withInitial(() -> new int[]{-1});
+	private final int admitCount;
+	private final long pinnedBytes;
+
+	private final LongAdder pinnedHits = new LongAdder();
+	private final LongAdder hotHits = new LongAdder();
+	private final LongAdder coldReads = new LongAdder();
+	private final LongAdder admissions = new LongAdder();
+
+	private static final class Entry {
+		final Place place;
+		final String normalizedName;
+		final String[] normalizedTypes;
+
+		Entry(Place place, String normalizedName) {
+			this.place = place;
+			this.normalizedName = normalizedName;
+			String[] types = place.getTypes();
+			normalizedTypes = new String[types.length];
+			for (int i = 0; i < types.length; i++) {
+				normalizedTypes[i] = StringTable.getInstance().intern(placeNormalizer.getInstance().normalize(types[i]));
+			}
+		}
+
+		// the normalized types are interned, so only their array counts
+		long bytes() {
+			return 24 + IndexFootprint.placeBytes(place) + IndexFootprint.stringBytes(normalizedName) + 16 + 4L * normalizedTypes.length;
+		}
+	}
+
+	/**
+	 * Approximate access counts (count-min sketch with 4-bit style saturation).
+	 * Counts are halved after every sampleSize increments so that formerly hot places can age out.
+	 */
+	private static class FrequencySketch {
+		private static final int MAX_COUNT = 15;
+		private final int[] counts;
+		private final int mask;
+		private final int sampleSize;
+		private final AtomicInteger increments = new AtomicInteger();
+
+		FrequencySketch(int expectedEntries) {
+			int width = Integer.highestOneBit(Math.max(1024, expectedEntries) - 1) << 1;
+			counts = new int[width];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+
+		private static int hash(int id, int seed) {
+			int h = (id + seed) * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		// races between threads only make the counts a little less exact
+		int increment(int id) {
+			int min = Integer.MAX_VALUE;
+			for (int seed = 0; seed < 4; seed++) {
+				int i = hash(id, seed * 0x7f4a7c15) & mask;
+				int c = counts[i];
+				if (c < MAX_COUNT) {
+					counts[i] = ++c;
+				}
+				min = Math.min(min, c);
+			}
+			if (increments.incrementAndGet() >= sampleSize) {
+				increments.set(0);
+				for (int i = 0; i < counts.length; i++) {
+					counts[i] >>>= 1;
+				}
+			}
+			return min;
+		}
+	}
+
+	/**
+	 * The heap budget and admission threshold come from the tieredStore* keys in config (overridable by system properties)
+	 */
+	public TieredPlaceStore(PlaceStore cold, Properties config) {
+		this(cold, JdbcStore.getLong(config, "tieredStoreMaxBytes"), (int) JdbcStore.getLong(config, "tieredStoreAdmitCount"));
+	}
+
+	public TieredPlaceStore(PlaceStore cold, long maxBytes, int admitCount) {
+		this.cold = cold;
+		this.admitCount = admitCount;
+		List<Entry> candidates = new ArrayList<>();
+		for (int id : pinnedIds(cold)) {
+			Entry e = readEntry(cold, id);
+			if (e != null) {
+				candidates.add(e);
+			}
+		}
+		candidates.sort(Comparator.comparingInt((Entry e) -> e.place.getLevel()).thenComparingLong(Entry::bytes));
+		long bytes = 0;
+		for (Entry e : candidates) {
+			long placeBytes = e.bytes();
+			if (bytes + placeBytes > maxBytes) {
+				logger.warning("Pinned " + pinned.size() + " of " + candidates.size() + " places of level " + PINNED_MAX_LEVEL +
+						" or less; the rest don't fit in tieredStoreMaxBytes=" + maxBytes);
+				break;
+			}
+			pinned.put(e.place.getId(), e);
+			bytes += placeBytes;
+		}
+		pinnedBytes = bytes;
+		hot = CacheBuilder.newBuilder()
+				.concurrencyLevel(JdbcStore.CACHE_CONCURRENCY)
+				.maximumWeight(Math.max(0, maxBytes - pinnedBytes))
+				.weigher((Integer id, Entry e) -> (int) Math.min(Integer.MAX_VALUE, 16 + e.bytes()))
+				.build();
+		// size the sketch for roughly the number of places the hot tier can hold
+		frequencies = new FrequencySketch((int) Math.min(1 << 24, Math.max(0, maxBytes - pinnedBytes) / 256));
+	}
+
+	// the cold store reads the normalized name it stored, where it has one
+	private static Entry readEntry(PlaceStore cold, int id) {
+		Place p = cold.getPlace(id);
+		return p == null ? null : new Entry(p, cold.getNormalizedName(id));
+	}
+
+	// levels are read through the cold store's accessors (from the flat file's records, for FlatPlaceStore),
+	// so only the places that are pinned are decoded
+	private static int[] pinnedIds(PlaceStore cold) {
+		IntList ids = new IntList();
+		cold.forEachId(id -> {
+			int level = cold.getLevel(id);
+			if (level > 0 && level <= PINNED_MAX_LEVEL) {
+				ids.add(id);
+			}
+		});
+		return ids.toArray();
+	}
+
+	private static class IntList {
+		private int[] values = new int[1024];
+		private int size = 0;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * @return the heap entry if the place is (or has just been admitted) on the heap, otherwise null
+	 */
+	private Entry heapPlace(int id) {
+		Entry e = pinned.get(id);
+		if (e != null) {
+			pinnedHits.increment();
+			return e;
+		}
+		e = hot.getIfPresent(id);
+		if (e != null) {
+			hotHits.increment();
+			return e;
+		}
+		int[] last = lastCounted.get();
+		boolean counted = last[0] == id;
+		last[0] = id;
+		if (!counted && frequencies.increment(id) >= admitCount) {
+			e = readEntry(cold, id);
+			if (e != null) {
+				hot.put(id, e);
+				admissions.increment();
+			}
+			return e;
+		}
+		coldReads.increment();
+		return null;
+	}
+
+	@Override
+	public Place getPlace(int id) {
+		Entry e = heapPlace(id);
+		return e != null ? e.place : cold.getPlace(id);
+	}
+
+	@Override
+	public int getLevel(int id) {
+		Entry e = heapPlace(id);
+		return e != null ? e.place.getLevel() : cold.getLevel(id);
+	}
+
+	@Override
+	public int getCountryId(int id) {
+		Entry e = heapPlace(id);
+		return e != null ? e.place.getCountryId() : cold.getCountryId(id);
+	}
+
+	@Override
+	public int getLocatedInId(int id) {
+		Entry e = heapPlace(id);
+		return e != null ? e.place.getLocatedInId() : cold.getLocatedInId(id);
+	}
+
+	@Override
+	public int[] getAlsoLocatedInIds(int id) {
+		Entry e = heapPlace(id);
+		return e != null ? e.place.getAlsoLocatedInIds() : cold.getAlsoLocatedInIds(id);
+	}
+
+	@Override
+	public String getPlaceName(int id) {
+		Entry e = heapPlace(id);
+		return e != null ? e.place.getName() : cold.getPlaceName(id);
+	}
+
+	@Override
+	public String getNormalizedName(int id) {
+		Entry e = heapPlace(id);
+		return e != null ? e.normalizedName : cold.getNormalizedName(id);
+	}
+
+	@Override
+	public boolean normalizedNameContains(int id, String token) {
+		Entry e = heapPlace(id);
+		return e != null ? e.normalizedName.indexOf(token) >= 0 : cold.normalizedNameContains(id, token);
+	}
+
+	@Override
+	public boolean normalizedTypeContains(int id, String token) {
+		Entry e = heapPlace(id);
+		if (e == null) {
+			return cold.normalizedTypeContains(id, token);
+		}
+		for (String type : e.normalizedTypes) {
+			if (type.indexOf(token) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String[] getTypes(int id) {
+		Entry e = heapPlace(id);
+		return e != null ? e.place.getTypes() : cold.getTypes(id);
+	}
+
+	@Override
+	public void forEachPlace(Consumer<Place> consumer) {
+		cold.forEachPlace(consumer);
+	}
+
+	@Override
+	public String getName() {
+		return "tiered(" + cold.getName() + ")";
+	}
+
+	public int getPinnedCount() {
+		return pinned.size();
+	}
+
+	public long getPinnedBytes() {
+		return pinnedBytes;
+	}
+
+	/**
+	 * @return sizes of the heap tiers and where accesses were served from
+	 */
+	public String getTierReport() {
+		return String.format("pinned=%d (%,d bytes) hot=%d pinnedHits=%d hotHits=%d admissions=%d coldReads=%d",
+				pinned.size(), pinnedBytes, hot.size(), pinnedHits.sum(), hotHits.sum(), admissions.sum(), coldReads.sum());
+	}
+}
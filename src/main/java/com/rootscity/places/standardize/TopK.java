@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+/**
+ * Keeps the k highest-scoring place ids in a min-heap of primitive arrays.
+ * Ties are broken by lower id so the ranking is deterministic.
+ */
+class TopK {
+	private final int[] ids;
+	private final double[] scores;
+	private int size = 0;
+
+	TopK(int k) {
+		ids = new int[k];
+		scores = new double[k];
+	}
+
+	// true if (id1, score1) ranks below (id2, score2)
+	private static boolean worse(int id1, double score1, int id2, double score2) {
+		return score1 < score2 || (score1 == score2 && id1 > id2);
+	}
+
+	void offer(int id, double score) {
+		if (size < ids.length) {
+			int pos = size++;
+			while (pos > 0) {
+				int parent = (pos - 1) >>> 1;
+				if (!worse(id, score, ids[parent], scores[parent])) {
+					break;
+				}
+				ids[pos] = ids[parent];
+				scores[pos] = scores[parent];
+				pos = parent;
+			}
+			ids[pos] = id;
+			scores[pos] = score;
+		} else if (size > 0 && worse(ids[0], scores[0], id, score)) {
+			siftDown(id, score);
+		}
+	}
+
+	// replace the root (worst entry) and restore the heap
+	private void siftDown(int id, double score) {
+		int pos = 0;
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && worse(ids[child + 1], scores[child + 1], ids[child], scores[child])) {
+				child++;
+			}
+			if (!worse(ids[child], scores[child], id, score)) {
+				break;
+			}
+			ids[pos] = ids[child];
+			scores[pos] = scores[child];
+			pos = child;
+		}
+		ids[pos] = id;
+		scores[pos] = score;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Empty the heap into ids/scores, best first
+	 */
+	void drain(int[] idsOut, double[] scoresOut) {
+		for (int i = size - 1; i >= 0; i--) {
+			idsOut[i] = ids[0];
+			scoresOut[i] = scores[0];
+			size--;
+			if (size > 0) {
+				siftDown(ids[size], scores[size]);
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012 Foundation for On-Line Genealogy, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rootscity.places.standardize;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Where the standardizer gets the posting list (place ids) of each indexed word from.
+ * Implementations must be safe for concurrent reads.
+ */
+public interface WordStore {
+	/**
+	 * @return ids of the places containing word, or null or an empty array if the word isn't indexed;
+	 * the array may be shared with the store, so it must not be modified
+	 */
+	int[] lookup(String word);
+
+	/**
+	 * Look up several words at once; backends that pay per round trip should override this
+	 * @return posting lists of the words that were found
+	 */
+	default Map<String, int[]> lookupAll(Collection<String> words) {
+		Map<String, int[]> result = new HashMap<>();
+		for (String word : words) {
+			int[] ids = lookup(word);
+			if (ids != null && ids.length > 0) {
+				result.put(word, ids);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return short name of the backend, for logging and metrics
+	 */
+	String getName();
+}
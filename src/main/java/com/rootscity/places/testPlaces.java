@@ -3,59 +3,309 @@ package com.rootscity.places;
 import com.google.common.base.Stopwatch;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.rootscity.common.MultiSTD;
 import com.rootscity.common.stats;
 import com.rootscity.places.standardize.Place;
 import com.rootscity.places.standardize.Standardizer;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
 
-import java.io.InputStreamReader;
-import java.util.TreeMap;
+import java.io.*;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Accuracy and throughput regression suite.
+ * Standardizes every key of PlacesMap.json, compares the result with the gold full name,
+ * times one cold pass and several warm passes, and compares the numbers with a stored baseline:
+ * by default regression-baseline.properties on the classpath, committed next to PlacesMap.json.
+ * Exits with status 1 when accuracy or performance regressed beyond the thresholds, or when there is no baseline
+ * and -updateBaseline wasn't given. A baseline without the accuracy numbers (identical, accuracy) fails too;
+ * timings it doesn't have yet are reported as unchecked, so the timings can be recorded separately on the reference machine.
+ */
 public class testPlaces {
 	public static transient Gson gson = new GsonBuilder().disableHtmlEscaping().create();
 	public TreeMap<String, String> placeMap = new TreeMap<>();
 
+	public static final String BASELINE_RESOURCE = "regression-baseline.properties";
+
+	@Option(name = "-baseline", usage = "baseline properties file; defaults to " + BASELINE_RESOURCE + " on the classpath")
+	private File baselineFile = null;
+
+	@Option(name = "-updateBaseline", usage = "write the measured numbers to the -baseline file instead of comparing with it")
+	private boolean updateBaseline = false;
+
+	@Option(name = "-warmPasses", usage = "number of timed passes after the cold pass")
+	private int warmPasses = 3;
+
+	@Option(name = "-maxAccuracyDrop", usage = "allowed drop in accuracy (fraction of places)")
+	private double maxAccuracyDrop = 0.0;
+
+	@Option(name = "-maxThroughputDrop", usage = "allowed relative drop in warm throughput")
+	private double maxThroughputDrop = 0.20;
+
+	@Option(name = "-maxLatencyIncrease", usage = "allowed relative increase in warm p50/p99 latency")
+	private double maxLatencyIncrease = 0.30;
+
+	@Option(name = "-maxColdChange", usage = "allowed relative drop in cold throughput and increase in cold p50/p99 latency")
+	private double maxColdChange = 0.50;
+
+	@Option(name = "-verbose", usage = "print every place that doesn't match the gold mapping")
+	private boolean verbose = false;
+
+	@Option(name = "-runOutput", usage = "write each text and the id it standardized to, for BuildExactMatches -run")
+	private File runOutput = null;
+
 	public static void main(String[] args) {
 		testPlaces tp  = new testPlaces();
-		tp.run();
+		CmdLineParser parser = new CmdLineParser(tp);
+		try {
+			parser.parseArgument(args);
+		}
+		catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		if (tp.updateBaseline && tp.baselineFile == null) {
+			System.err.println("-updateBaseline needs -baseline, e.g. src/main/resources/" + BASELINE_RESOURCE);
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		System.exit(tp.run() ? 0 : 1);
 	}
 
-	public void run() {
-		InputStreamReader bis = new InputStreamReader(ClassLoader.getSystemResourceAsStream("PlacesMap.json"));
-		JsonReader jr = new JsonReader(bis);
-		placeMap = gson.fromJson(jr, placeMap.getClass());
+	/**
+	 * Timings and accuracy of one pass over the gold mapping
+	 */
+	static class PassResult {
 		int eq = 0;
 		int diff = 0;
+		long elapsedNanos = 0;
+		long[] latencies;
+		// id each text standardized to, 0 for none; in placeMap order
+		int[] placeIds;
+
+		double accuracy() {
+			return eq + diff == 0 ? 0.0 : (double) eq / (eq + diff);
+		}
+
+		double throughput() {
+			return elapsedNanos == 0 ? 0.0 : latencies.length / (elapsedNanos / 1e9);
+		}
+
+		// latency percentile in microseconds; 0 for an empty pass
+		double percentile(double pct) {
+			if (latencies.length == 0) {
+				return 0.0;
+			}
+			long[] sorted = latencies.clone();
+			Arrays.sort(sorted);
+			int pos = (int) Math.ceil(pct / 100.0 * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, pos))] / 1000.0;
+		}
+	}
+
+	private void loadPlaceMap() {
+		InputStreamReader bis = new InputStreamReader(ClassLoader.getSystemResourceAsStream("PlacesMap.json"));
+		JsonReader jr = new JsonReader(bis);
+		placeMap = gson.fromJson(jr, new TypeToken<TreeMap<String, String>>() {}.getType());
+	}
+
+	/**
+	 * @param diffs if not null, collects a line per place that doesn't match the gold mapping, to print after the timed pass
+	 */
+	private PassResult runPass(List<String> diffs) {
+		PassResult pass = new PassResult();
+		pass.latencies = new long[placeMap.size()];
+		pass.placeIds = new int[placeMap.size()];
+		int i = 0;
+		long passStart = System.nanoTime();
+		for (Map.Entry<String, String> entry : placeMap.entrySet()) {
+			long start = System.nanoTime();
+			Place result = Standardizer.getInstance().standardize(entry.getKey());
+			pass.latencies[i] = System.nanoTime() - start;
+			pass.placeIds[i++] = result == null ? 0 : result.getId();
+			// full name lookups aren't part of the standardize latency
+			String res = result==null? "": result.getFullName();
+			if (res.equalsIgnoreCase(entry.getValue())) {
+				pass.eq++;
+			}
+			else {
+				pass.diff++;
+				if (diffs != null) {
+					diffs.add(entry.getKey() + " |\t" + res + " |\t" + entry.getValue());
+				}
+			}
+		}
+		pass.elapsedNanos = System.nanoTime() - passStart;
+		return pass;
+	}
+
+	private void report(String label, PassResult pass) {
+		System.out.println(String.format("%s: identical=%d diff=%d accuracy=%.4f elapsed=%.3fs throughput=%.1f/s p50=%.1fus p99=%.1fus",
+				label, pass.eq, pass.diff, pass.accuracy(), pass.elapsedNanos / 1e9, pass.throughput(),
+				pass.percentile(50), pass.percentile(99)));
+	}
+
+	/**
+	 * @return true if no regression was found
+	 */
+	public boolean run() {
+		loadPlaceMap();
 		Stopwatch sw = Stopwatch.createStarted();
 		Standardizer.getInstance();
 		sw.stop();
 		Long ms = sw.elapsed(TimeUnit.MILLISECONDS);
 		System.out.println("\nInit: " + ms/1000.0);
-		sw.reset();
-		sw.start();
-		for (String p: placeMap.keySet()) {
-			Place result = Standardizer.getInstance().standardize(p);
-			String res = result==null? "": result.getFullName();
-			String oldRes = placeMap.get(p);
-			if (res.equalsIgnoreCase(oldRes)) {
-				eq++;
+
+		List<String> diffs = verbose ? new ArrayList<>() : null;
+		PassResult cold = runPass(diffs);
+		if (diffs != null) {
+			for (String diff : diffs) {
+				System.out.println(diff);
 			}
-			else {
-				diff++;
-				System.out.println(p + " |\t" + res + " |\t" + oldRes);
+		}
+		report("Cold", cold);
+		if (runOutput != null) {
+			writeRunOutput(cold);
+		}
+
+		// merge the warm passes into one result
+		PassResult warm = new PassResult();
+		warm.latencies = new long[0];
+		for (int i = 0; i < warmPasses; i++) {
+			PassResult pass = runPass(null);
+			int offset = warm.latencies.length;
+			warm.latencies = Arrays.copyOf(warm.latencies, offset + pass.latencies.length);
+			System.arraycopy(pass.latencies, 0, warm.latencies, offset, pass.latencies.length);
+			warm.elapsedNanos += pass.elapsedNanos;
+			warm.eq += pass.eq;
+			warm.diff += pass.diff;
+		}
+		if (warmPasses > 0) {
+			report("Warm", warm);
+		}
+
+		Properties measured = new Properties();
+		measured.setProperty("places", Integer.toString(placeMap.size()));
+		measured.setProperty("identical", Integer.toString(cold.eq));
+		measured.setProperty("diff", Integer.toString(cold.diff));
+		measured.setProperty("accuracy", Double.toString(cold.accuracy()));
+		measured.setProperty("cold.throughput", Double.toString(cold.throughput()));
+		measured.setProperty("cold.p50", Double.toString(cold.percentile(50)));
+		measured.setProperty("cold.p99", Double.toString(cold.percentile(99)));
+		if (warmPasses > 0) {
+			measured.setProperty("warm.throughput", Double.toString(warm.throughput()));
+			measured.setProperty("warm.p50", Double.toString(warm.percentile(50)));
+			measured.setProperty("warm.p99", Double.toString(warm.percentile(99)));
+		}
+
+		if (updateBaseline) {
+			writeBaseline(measured);
+			System.out.println("\nWrote baseline " + baselineFile);
+			return true;
+		}
+		Properties baseline = readBaseline();
+		boolean ok = baseline != null && compareWithBaseline(baseline, measured);
+		System.out.println(ok ? "\nNo regressions" : "\nREGRESSION");
+		return ok;
+	}
+
+	/**
+	 * @return the baseline, or null (after saying so) if there is none
+	 */
+	private Properties readBaseline() {
+		Properties baseline = new Properties();
+		try (InputStream in = baselineFile != null ? (baselineFile.exists() ? new FileInputStream(baselineFile) : null) :
+				ClassLoader.getSystemResourceAsStream(BASELINE_RESOURCE)) {
+			if (in == null) {
+				System.out.println("No baseline at " + (baselineFile != null ? baselineFile : BASELINE_RESOURCE + " on the classpath") +
+						"; run with -updateBaseline to write one");
+				return null;
 			}
+			baseline.load(new InputStreamReader(in, "UTF8"));
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Error reading baseline: " + e.getMessage());
+		}
+		return baseline;
+	}
+
+	private boolean compareWithBaseline(Properties baseline, Properties measured) {
+		boolean ok = true;
+		if (!measured.getProperty("places").equals(baseline.getProperty("places"))) {
+			System.out.println("PlacesMap.json changed since the baseline was written; update the baseline");
+			ok = false;
+		}
+		ok &= check(baseline, measured, "identical", -Math.floor(maxAccuracyDrop * placeMap.size()), false, true);
+		ok &= check(baseline, measured, "accuracy", -maxAccuracyDrop, false, true);
+		ok &= check(baseline, measured, "cold.throughput", -maxColdChange, true, false);
+		ok &= check(baseline, measured, "cold.p50", maxColdChange, true, false);
+		ok &= check(baseline, measured, "cold.p99", maxColdChange, true, false);
+		ok &= check(baseline, measured, "warm.throughput", -maxThroughputDrop, true, false);
+		ok &= check(baseline, measured, "warm.p50", maxLatencyIncrease, true, false);
+		ok &= check(baseline, measured, "warm.p99", maxLatencyIncrease, true, false);
+		return ok;
+	}
+
+	/**
+	 * @param allowed allowed change; negative means the value may drop by at most -allowed, positive that it may rise by at most allowed
+	 * @param relative whether allowed is relative to the baseline value or absolute
+	 * @param required whether a baseline without key fails; otherwise key is reported as unchecked
+	 */
+	private boolean check(Properties baseline, Properties measured, String key, double allowed, boolean relative, boolean required) {
+		String base = baseline.getProperty(key);
+		String value = measured.getProperty(key);
+		if (value == null) {
+			// not measured in this run, e.g. the warm numbers with -warmPasses 0
+			return true;
+		}
+		if (base == null) {
+			System.out.println(String.format("%-16s measured=%-12.4f not in the baseline; run with -updateBaseline to check it %s",
+					key, Double.parseDouble(value), required ? "FAILED" : "unchecked"));
+			return !required;
+		}
+		double b = Double.parseDouble(base);
+		double v = Double.parseDouble(value);
+		double change = relative ? (b == 0 ? 0 : (v - b) / b) : v - b;
+		boolean ok = allowed < 0 ? change >= allowed : change <= allowed;
+		System.out.println(String.format("%-16s baseline=%-12.4f measured=%-12.4f change=%+.4f %s",
+				key, b, v, change, ok ? "ok" : "FAILED"));
+		return ok;
+	}
+
+	private void writeRunOutput(PassResult pass) {
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(runOutput), "UTF8"))) {
+			int i = 0;
+			for (String text : placeMap.keySet()) {
+				int id = pass.placeIds[i++];
+				if (id > 0) {
+					BuildExactMatches.writeRunLine(w, text, id);
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Error writing run output: " + e.getMessage());
+		}
+	}
+
+	private void writeBaseline(Properties measured) {
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(baselineFile), "UTF8")) {
+			measured.store(w, "testPlaces regression baseline");
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Error writing baseline: " + e.getMessage());
 		}
-		sw.stop();
-		ms = sw.elapsed(TimeUnit.MILLISECONDS);
-		System.out.println("\n Identical: " + eq + " \tDiff: " + diff + "\tElapsed: " + ms/1000.0);
 	}
 
 	public void runOld() {
 		InputStreamReader bis = new InputStreamReader(ClassLoader.getSystemResourceAsStream("PlacesMap.json"));
 		JsonReader jr = new JsonReader(bis);
-		placeMap = gson.fromJson(jr, placeMap.getClass());
+		placeMap = gson.fromJson(jr, new TypeToken<TreeMap<String, String>>() {}.getType());
 		Stopwatch sw = Stopwatch.createStarted();
 		MultiSTD<String> std = new MultiSTD<String>(null, "http://localhost:2016", 5, true) {
 			@Override
@@ -0,0 +1,188 @@
+package com.rootscity.places;
+
+import com.rootscity.places.standardize.JdbcStore;
+import org.h2.jdbcx.JdbcDataSource;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import javax.sql.DataSource;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Embedded H2 stand-in for the MySQL places database, for local testing; H2 is only on the test classpath.
+ * Loads places.tsv and place_words.tsv into the places and place_words tables and creates an empty place_changes log;
+ * run a standardizer against it with DATABASE_URL set to the same url.
+ * With -check, edits a place and adds a word through the change log and verifies JdbcStore evicts both,
+ * also when the change log rows become visible out of seq order.
+ * This is a manual check, run against a loaded database; the build doesn't run it.
+ */
+public class LocalDatabase {
+	public static final String CHANGE_LOG_TABLE = "place_changes";
+	private static final int BATCH_SIZE = 1000;
+	private static final String CHECK_WORD = "zzlocaldatabasecheck";
+	// id, located_in_id, level, country_id, latitude, longitude
+	private static final int[] PLACE_NUMERIC_COLUMNS = {0, 4, 6, 7, 8, 9};
+
+	@Option(name = "-in", required = true, usage = "directory containing places.tsv and place_words.tsv")
+	private File inDir;
+
+	@Option(name = "-url", usage = "H2 jdbc url; AUTO_SERVER lets several processes share the file")
+	private String url = "jdbc:h2:./places-h2;AUTO_SERVER=TRUE";
+
+	@Option(name = "-check", usage = "after loading, check that edits recorded in the change log are evicted from the caches")
+	private boolean check = false;
+
+	public static void main(String[] args) throws Exception {
+		LocalDatabase db = new LocalDatabase();
+		CmdLineParser parser = new CmdLineParser(db);
+		try {
+			parser.parseArgument(args);
+		}
+		catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(2);
+		}
+		DataSource ds = db.load();
+		if (db.check && !check(ds)) {
+			System.exit(1);
+		}
+	}
+
+	public DataSource load() throws IOException, SQLException {
+		JdbcDataSource ds = new JdbcDataSource();
+		ds.setURL(url);
+		ds.setUser("sa");
+		ds.setPassword("");
+		try (Connection conn = ds.getConnection(); Statement s = conn.createStatement()) {
+			s.execute("DROP TABLE IF EXISTS places");
+			s.execute("DROP TABLE IF EXISTS place_words");
+			s.execute("DROP TABLE IF EXISTS " + CHANGE_LOG_TABLE);
+			s.execute("CREATE TABLE places (id INT PRIMARY KEY, name VARCHAR(255), alt_names VARCHAR(10000), " +
+					"types VARCHAR(1000), located_in_id INT, also_located_in_ids VARCHAR(1000), level INT, country_id INT, " +
+					"latitude DOUBLE, longitude DOUBLE, sources VARCHAR(10000))");
+			s.execute("CREATE TABLE place_words (word VARCHAR(255) PRIMARY KEY, ids CLOB)");
+			s.execute("CREATE TABLE " + CHANGE_LOG_TABLE + " (seq BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+					"place_id INT, word VARCHAR(255))");
+			conn.setAutoCommit(false);
+			int places = load(conn, new File(inDir, "places.tsv"), "INSERT INTO places VALUES (?,?,?,?,?,?,?,?,?,?,?)",
+					11, PLACE_NUMERIC_COLUMNS);
+			int words = load(conn, new File(inDir, "place_words.tsv"), "INSERT INTO place_words VALUES (?,?)", 2, new int[0]);
+			conn.commit();
+			System.out.println("Loaded " + places + " places and " + words + " words into " + url);
+		}
+		return ds;
+	}
+
+	// tsv columns in table order; empty or missing numeric fields are stored as null, text fields as ""
+	// (JdbcStore.constructPlace expects the text columns to be non-null, as they are in MySQL)
+	private static int load(Connection conn, File file, String insert, int columns, int[] numericColumns)
+			throws IOException, SQLException {
+		int rows = 0;
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		     PreparedStatement ps = conn.prepareStatement(insert)) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				for (int i = 0; i < columns; i++) {
+					String value = i < fields.length ? fields[i] : "";
+					if (value.isEmpty() && Arrays.binarySearch(numericColumns, i) >= 0) {
+						value = null;
+					}
+					ps.setString(i + 1, value);
+				}
+				ps.addBatch();
+				if (++rows % BATCH_SIZE == 0) {
+					ps.executeBatch();
+				}
+			}
+			ps.executeBatch();
+		}
+		return rows;
+	}
+
+	private static void update(DataSource ds, String sql, Object... params) throws SQLException {
+		try (Connection conn = ds.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			for (int i = 0; i < params.length; i++) {
+				ps.setObject(i + 1, params[i]);
+			}
+			ps.executeUpdate();
+		}
+	}
+
+	private static boolean report(String what, boolean passed) {
+		System.out.println((passed ? "PASS " : "FAIL ") + what);
+		return passed;
+	}
+
+	/**
+	 * Rename a country and add a word for it, recording both in the change log, and check that cached copies
+	 * survive until the log is polled and are gone after it. The edits are undone the same way.
+	 */
+	public static boolean check(DataSource ds) throws IOException, SQLException {
+		Properties config = new Properties();
+		try (InputStream in = LocalDatabase.class.getClassLoader().getResourceAsStream("standardizer.properties")) {
+			config.load(in);
+		}
+		config.setProperty("changeLogTable", CHANGE_LOG_TABLE);
+		JdbcStore store = new JdbcStore(ds, config);
+		store.pollChanges();
+
+		int id;
+		String name;
+		try (Connection conn = ds.getConnection(); Statement s = conn.createStatement();
+		     ResultSet rs = s.executeQuery("SELECT id, name FROM places WHERE level = 1 ORDER BY id")) {
+			if (!rs.next()) {
+				System.out.println("FAIL no top-level place to edit");
+				return false;
+			}
+			id = rs.getInt(1);
+			name = rs.getString(2);
+		}
+		String newName = name + " Renamed";
+		boolean passed = report("place " + id + " is read", name.equals(store.getPlace(id).getName()));
+		passed &= report("word " + CHECK_WORD + " is not found", store.lookup(CHECK_WORD).length == 0);
+
+		update(ds, "UPDATE places SET name = ? WHERE id = ?", newName, id);
+		update(ds, "INSERT INTO place_words (word, ids) VALUES (?, ?)", CHECK_WORD, Integer.toString(id));
+		passed &= report("cached place is kept before the change is logged", name.equals(store.getPlace(id).getName()));
+		update(ds, "INSERT INTO " + CHANGE_LOG_TABLE + " (place_id) VALUES (?)", id);
+		update(ds, "INSERT INTO " + CHANGE_LOG_TABLE + " (word) VALUES (?)", CHECK_WORD);
+		passed &= report("two changes are polled", store.pollChanges() == 2);
+		passed &= report("edited place is reloaded", newName.equals(store.getPlace(id).getName()));
+		passed &= report("added word is found", Arrays.equals(new int[]{id}, store.lookup(CHECK_WORD)));
+		passed &= report("nothing left to poll", store.pollChanges() == 0);
+
+		update(ds, "UPDATE places SET name = ? WHERE id = ?", name, id);
+		update(ds, "DELETE FROM place_words WHERE word = ?", CHECK_WORD);
+		update(ds, "INSERT INTO " + CHANGE_LOG_TABLE + " (place_id, word) VALUES (?, ?)", id, CHECK_WORD);
+		store.pollChanges();
+		passed &= report("undone edit is reloaded", name.equals(store.getPlace(id).getName()));
+		passed &= report("deleted word is gone", store.lookup(CHECK_WORD).length == 0);
+
+		// a concurrent writer's row committed after a row with a higher seq
+		long seq = store.getLastChangeSeq();
+		store.getPlace(id);
+		update(ds, "INSERT INTO place_words (word, ids) VALUES (?, ?)", CHECK_WORD, Integer.toString(id));
+		update(ds, "INSERT INTO " + CHANGE_LOG_TABLE + " (seq, word) VALUES (?, ?)", seq + 2, CHECK_WORD);
+		passed &= report("newer change is polled", store.pollChanges() == 1);
+		update(ds, "UPDATE places SET name = ? WHERE id = ?", newName, id);
+		update(ds, "INSERT INTO " + CHANGE_LOG_TABLE + " (seq, place_id) VALUES (?, ?)", seq + 1, id);
+		passed &= report("change committed late is polled", store.pollChanges() == 1);
+		passed &= report("place edited late is reloaded", newName.equals(store.getPlace(id).getName()));
+		passed &= report("nothing left to poll after the late change", store.pollChanges() == 0);
+
+		update(ds, "UPDATE places SET name = ? WHERE id = ?", name, id);
+		update(ds, "DELETE FROM place_words WHERE word = ?", CHECK_WORD);
+		update(ds, "INSERT INTO " + CHANGE_LOG_TABLE + " (seq, place_id, word) VALUES (?, ?, ?)", seq + 3, id, CHECK_WORD);
+		// explicit seqs don't advance the identity
+		update(ds, "ALTER TABLE " + CHANGE_LOG_TABLE + " ALTER COLUMN seq RESTART WITH " + (seq + 4));
+		store.pollChanges();
+		return passed;
+	}
+}